@@ -2,6 +2,9 @@ package hats.api;
 
 import hats.client.core.HatInfoClient;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public final class Api 
 {
@@ -43,6 +46,20 @@ public final class Api
 		}
 	}
 
+	/**
+	 * Gets the names of the loaded hats starting with a prefix, ignoring case.
+	 * @param prefix - Start of the hat name
+	 * @return Hat names, an exact match first and the rest in alphabetical order. Empty if the Hats mod isn't there.
+	 */
+    public static List<String> getHatsStartingWith(String prefix)
+    {
+        try {
+            return (List<String>)Class.forName("hats.common.core.ApiHandler").getDeclaredMethod("getHatsStartingWith", String.class).invoke(null, prefix);
+        } catch (Exception e) {
+            return new ArrayList<String>();
+        }
+    }
+
     public static Object getRandomHatInfoWithServerWeightage(int r, int g, int b, int alpha)
     {
         try {
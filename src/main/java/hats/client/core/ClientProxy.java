@@ -5,16 +5,20 @@ import cpw.mods.fml.client.registry.RenderingRegistry;
 import cpw.mods.fml.common.FMLCommonHandler;
 import hats.client.gui.GuiHatSelection;
 import hats.client.render.RenderHat;
+import hats.common.Hats;
 import hats.common.core.CommonProxy;
+import hats.common.core.HatFileData;
 import hats.common.core.HatHandler;
+import hats.common.core.HatLoadStats;
+import hats.common.core.HatRegistry;
 import hats.common.entity.EntityHat;
 import hats.common.thread.ThreadHatsReader;
-import ichun.common.core.techne.TC2Info;
+import hats.common.thread.ThreadHatsWatcher;
 import ichun.common.core.techne.model.ModelTechne2;
 import net.minecraft.client.Minecraft;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.Map;
 
 public class ClientProxy extends CommonProxy
 {
@@ -36,6 +40,13 @@ public class ClientProxy extends CommonProxy
     @Override
     public void getHatsAndOpenGui()
     {
+        if(ThreadHatsWatcher.isWatching())
+        {
+            //The watcher keeps the library up to date, just apply anything still queued.
+            ThreadHatsWatcher.instance.flush();
+            HatHandler.reloadAndOpenGui();
+            return;
+        }
         ((Thread)new ThreadHatsReader(HatHandler.hatsFolder, false, true)).start();
     }
 
@@ -43,14 +54,37 @@ public class ClientProxy extends CommonProxy
     public void clearAllHats()
     {
         super.clearAllHats();
-        models.clear();
+        if(models.hits + models.misses > 0)
+        {
+            Hats.console("Hat model cache: " + models.getStats());
+        }
+        models.beginReload();
+    }
+
+    @Override
+    public void onRegistryPublished(HatRegistry registry)
+    {
+        models.sync(registry);
+    }
+
+    @Override
+    public void unloadHatFile(File file, String hatName)
+    {
+        super.unloadHatFile(file, hatName);
+        models.remove(hatName);
+        File other = HatHandler.getWorkingHatFile(hatName);
+        if(other != null)
+        {
+            //Another copy of the hat is still loaded, render from that instead.
+            models.register(hatName, other, getChecksum(other), null);
+        }
     }
 
     @Override
     public void remap(String duplicate, String original)
     {
         super.remap(duplicate, original);
-        models.put(duplicate, models.get(original));
+        models.remap(duplicate, original);
     }
 
     @Override
@@ -61,19 +95,47 @@ public class ClientProxy extends CommonProxy
     }
 
     @Override
-    public void loadHatFile(File file)
+    public boolean keepParsedHat(String hatName)
     {
-        TC2Info info = TC2Info.readTechneFile(file);
-        if(info != null)
-        {
-            super.loadHatFile(file);
+        return models.wasRecentlyUsed(hatName);
+    }
+
+    @Override
+    public void loadHatFile(File file, HatFileData data)
+    {
+        super.loadHatFile(file, data);
 
-            String hatName = file.getName().substring(0, file.getName().length() - 4).toLowerCase();
+        String hatName = file.getName().substring(0, file.getName().length() - 4).toLowerCase();
 
-            models.put(hatName, new ModelTechne2(info));
+        //Hats that were being rendered before the reload get their model straight from the TC2Info we validated with.
+        //Everything else is built on first render, see HatModelCache.
+        ModelTechne2 model = null;
+        if(data != null && data.info != null)
+        {
+            long wall = System.nanoTime();
+            long cpu = HatLoadStats.getThreadCpuTime();
+            model = new ModelTechne2(data.info);
+            HatLoadStats stats = HatLoadStats.current;
+            if(stats != null)
+            {
+                stats.add("models", System.nanoTime() - wall, HatLoadStats.getThreadCpuTime() - cpu, 0L, 1);
+            }
+        }
+        models.register(hatName, file, data != null ? data.checksum : getChecksum(file), model);
+    }
+
+    private String getChecksum(File file)
+    {
+        for(Map.Entry<String, File> e : HatHandler.checksums.entrySet())
+        {
+            if(e.getValue().equals(file))
+            {
+                return e.getKey();
+            }
         }
+        return "";
     }
 
-    public static HashMap<String, ModelTechne2> models = new HashMap<String, ModelTechne2>();
+    public static HatModelCache models = new HatModelCache();
 
 }
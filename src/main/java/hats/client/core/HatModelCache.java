@@ -0,0 +1,279 @@
+package hats.client.core;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import hats.common.Hats;
+import hats.common.core.HatBundle;
+import hats.common.core.HatHandler;
+import hats.common.core.HatRegistry;
+import ichun.common.core.techne.TC2Info;
+import ichun.common.core.techne.model.ModelTechne2;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds the hat models that are actually being rendered. Loading the library only records which file backs each hat,
+ * the model is built off-thread the first time it's asked for and the least recently used ones are dropped once over budget.
+ * Models survive a reload as long as the hat's checksum is unchanged, sync() drops the rest once the new registry is published.
+ */
+@SideOnly(Side.CLIENT)
+public class HatModelCache
+{
+    private final HashMap<String, File> sources = new HashMap<String, File>();
+
+    private final HashMap<String, String> checksums = new HashMap<String, String>();
+
+    private final HashMap<String, String> builtFrom = new HashMap<String, String>();
+
+    private final HashSet<String> loading = new HashSet<String>();
+
+    private final HashSet<String> failed = new HashSet<String>();
+
+    private final LinkedHashMap<String, ModelTechne2> models = new LinkedHashMap<String, ModelTechne2>(64, 0.75F, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ModelTechne2> eldest)
+        {
+            if(size() > getMaxEntries())
+            {
+                evictions++;
+                builtFrom.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private ExecutorService executor;
+
+    private int generation;
+
+    public long hits;
+    public long misses;
+    public long evictions;
+    public long builds;
+    public long buildNanos;
+
+    /**
+     * Returns the model for this hat, or null if it isn't built yet. A miss on a known hat queues it to be built.
+     */
+    public synchronized ModelTechne2 get(String hatName)
+    {
+        ModelTechne2 model = models.get(hatName);
+        if(model != null)
+        {
+            hits++;
+            return model;
+        }
+        misses++;
+        File file = sources.get(hatName);
+        if(file != null && !failed.contains(hatName) && loading.add(hatName))
+        {
+            getExecutor().execute(new LoadTask(hatName, file, checksums.get(hatName)));
+        }
+        return null;
+    }
+
+    public synchronized boolean has(String hatName)
+    {
+        return sources.containsKey(hatName);
+    }
+
+    public synchronized boolean isLoading(String hatName)
+    {
+        return loading.contains(hatName);
+    }
+
+    public synchronized void register(String hatName, File file, String checksum, ModelTechne2 model)
+    {
+        sources.put(hatName, file);
+        checksums.put(hatName, checksum);
+        failed.remove(hatName);
+        if(model != null)
+        {
+            models.put(hatName, model);
+            builtFrom.put(hatName, checksum);
+        }
+        else if(!checksum.equals(builtFrom.get(hatName)))
+        {
+            //Only drop what we have if the hat actually changed.
+            models.remove(hatName);
+            builtFrom.remove(hatName);
+        }
+    }
+
+    /**
+     * Whether this hat has a model cached from before the reload. Those are worth building as soon as they're parsed.
+     */
+    public synchronized boolean wasRecentlyUsed(String hatName)
+    {
+        return models.containsKey(hatName);
+    }
+
+    public synchronized void remap(String duplicate, String original)
+    {
+        File file = sources.get(original);
+        if(file != null)
+        {
+            sources.put(duplicate, file);
+            checksums.put(duplicate, checksums.get(original));
+        }
+        models.remove(duplicate);
+        builtFrom.remove(duplicate);
+        failed.remove(duplicate);
+    }
+
+    public synchronized void remove(String hatName)
+    {
+        sources.remove(hatName);
+        checksums.remove(hatName);
+        models.remove(hatName);
+        builtFrom.remove(hatName);
+        failed.remove(hatName);
+    }
+
+    /**
+     * Called before a full reload registers everything again. Built models are kept until sync() so nothing flickers.
+     */
+    public synchronized void beginReload()
+    {
+        sources.clear();
+        checksums.clear();
+        failed.clear();
+    }
+
+    /**
+     * Called whenever a new registry is published. Drops models for hats that are gone and moves to the registry's generation.
+     */
+    public synchronized void sync(HatRegistry registry)
+    {
+        if(registry.generation == generation)
+        {
+            return;
+        }
+        generation = registry.generation;
+        Iterator<String> ite = models.keySet().iterator();
+        while(ite.hasNext())
+        {
+            String hatName = ite.next();
+            if(!sources.containsKey(hatName))
+            {
+                ite.remove();
+                builtFrom.remove(hatName);
+            }
+        }
+    }
+
+    public synchronized int size()
+    {
+        return models.size();
+    }
+
+    public synchronized String getStats()
+    {
+        long lookups = hits + misses;
+        return models.size() + "/" + getMaxEntries() + " models cached, " + sources.size() + " hats known. Hits: " + hits + ", misses: " + misses + (lookups > 0 ? " (" + (hits * 100L / lookups) + "% hit rate)" : "") + ", evictions: " + evictions + ", built " + builds + " in the background" + (builds > 0 ? " (avg " + (buildNanos / builds / 1000L) + "us)" : "");
+    }
+
+    private int getMaxEntries()
+    {
+        return Hats.config != null ? Hats.config.getInt("modelCacheSize") : 256;
+    }
+
+    private synchronized void finishLoad(String hatName, File file, String checksum, ModelTechne2 model)
+    {
+        loading.remove(hatName);
+        //Drop it if the hat was removed or its file changed while this was building.
+        if(file.equals(sources.get(hatName)) && checksum.equals(checksums.get(hatName)))
+        {
+            if(model != null)
+            {
+                models.put(hatName, model);
+                builtFrom.put(hatName, checksum);
+            }
+            else
+            {
+                //Don't keep retrying a broken file every frame.
+                failed.add(hatName);
+            }
+        }
+    }
+
+    private ExecutorService getExecutor()
+    {
+        if(executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Hats Model Loader Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private class LoadTask implements Runnable
+    {
+        public final String hatName;
+        public final File file;
+        public final String checksum;
+
+        public LoadTask(String hatName, File file, String checksum)
+        {
+            this.hatName = hatName;
+            this.file = file;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            ModelTechne2 model = null;
+            try
+            {
+                TC2Info info;
+                HatBundle bundle = HatHandler.bundle;
+                int i = !file.exists() && bundle != null ? bundle.indexOf(hatName) : -1;
+                if(i >= 0)
+                {
+                    //Packed hat, TC2Info only reads from files so write it out just long enough to parse.
+                    File temp = bundle.extract(i);
+                    info = TC2Info.readTechneFile(temp);
+                    temp.delete();
+                }
+                else
+                {
+                    info = TC2Info.readTechneFile(file);
+                }
+                if(info != null)
+                {
+                    model = new ModelTechne2(info);
+                }
+            }
+            catch(Exception e)
+            {
+                Hats.console("Failed to build model for " + file.getName(), true);
+            }
+            synchronized(HatModelCache.this)
+            {
+                builds++;
+                buildNanos += System.nanoTime() - start;
+            }
+            finishLoad(hatName, file, checksum, model);
+        }
+    }
+}
@@ -175,7 +175,7 @@ public class GuiHatSelection extends GuiScreen
 		Collections.sort(hatsToShow);
 		
 		categories = new ArrayList<String>();
-		for(Map.Entry<String, ArrayList<String>> e : HatHandler.categories.entrySet())
+		for(Map.Entry<String, List<String>> e : HatHandler.getRegistry().categories.entrySet())
 		{
 			if(!e.getKey().equalsIgnoreCase("Favourites"))
 			{
@@ -1357,7 +1357,7 @@ public class GuiHatSelection extends GuiScreen
     		}
     		categories.add(s);
     		Collections.sort(categories);
-    		HatHandler.categories.put(s, new ArrayList<String>());
+    		HatHandler.createCategory(s);
     		
 	    	hatsToShow = new ArrayList<String>(categories);
 	    	Collections.sort(hatsToShow);
@@ -1420,7 +1420,7 @@ public class GuiHatSelection extends GuiScreen
 	    	
 	    	category = s;
 	    	
-	    	ArrayList<String> hatsList = HatHandler.categories.get(s);
+	    	List<String> hatsList = HatHandler.getRegistry().categories.get(s);
 	    	if(hatsList == null)
 	    	{
 	    		hatsList = new ArrayList<String>();
@@ -19,7 +19,7 @@ public class HatRendererHelper
         {
             return;
         }
-        ModelTechne2 model = ClientProxy.models.get(info.hatName);
+        ModelTechne2 model = ClientProxy.models.get(info.hatName);//queues the model to be built if we have the hat but it isn't cached
 
         if(model != null)
         {
@@ -97,7 +97,7 @@ public class HatRendererHelper
 
             Hats.proxy.tickHandlerClient.currentHatRenders++;
         }
-        else if(!HatHandler.reloadingHats)
+        else if(!HatHandler.reloadingHats && !ClientProxy.models.has(info.hatName))
         {
             if(!Hats.proxy.tickHandlerClient.requestedHats.contains(info.hatName))
             {
@@ -12,6 +12,7 @@ import hats.common.core.CommonProxy;
 import hats.common.core.EventHandler;
 import hats.common.core.HatHandler;
 import hats.common.core.HatInfo;
+import hats.common.core.HatLibraryIndex;
 import ichun.common.core.config.Config;
 import ichun.common.core.config.ConfigHandler;
 import ichun.common.core.config.IConfigUser;
@@ -71,6 +72,8 @@ public class Hats
             HatHandler.hatsFolder.mkdirs();
         }
 
+        HatHandler.libraryIndex = new HatLibraryIndex(HatHandler.hatsFolder);
+
         boolean isClient = proxy instanceof ClientProxy;
 
         config = ConfigHandler.createConfig(event.getSuggestedConfigurationFile(), "hats", "Hats", logger, instance);
@@ -81,6 +84,8 @@ public class Hats
         config.createIntBoolProperty("allowReceivingOfHats", "hats.config.prop.allowReceivingOfHats.name", "hats.config.prop.allowReceivingOfHats.comment", true, false, true);
         config.createIntBoolProperty("modMobSupport", "hats.config.prop.modMobSupport.name", "hats.config.prop.modMobSupport.comment", true, false, true);
         config.createIntBoolProperty("readLocalModMobSupport", "hats.config.prop.readLocalModMobSupport.name", "hats.config.prop.readLocalModMobSupport.comment", true, false, false);
+        config.createIntProperty("hatLoadThreads", "hats.config.prop.hatLoadThreads.name", "hats.config.prop.hatLoadThreads.comment", true, false, 0, 0, 64);
+        config.createIntBoolProperty("watchHatsFolder", "hats.config.prop.watchHatsFolder.name", "hats.config.prop.watchHatsFolder.comment", true, false, false);
 
         config.setCurrentCategory("serverOptions", "hats.config.cat.serverOptions.name", "hats.config.cat.serverOptions.comment");
         config.createIntProperty("playerHatsMode", "hats.config.prop.playerHatsMode.name", "hats.config.prop.playerHatsMode.comment", true, true, 4, 1, 6);
@@ -89,6 +94,7 @@ public class Hats
         config.createIntProperty("startTime", "hats.config.prop.startTime.name", "hats.config.prop.startTime.comment", false, false, 6000, 10, Integer.MAX_VALUE);
         config.createIntProperty("timeIncrement", "hats.config.prop.timeIncrement.name", "hats.config.prop.timeIncrement.comment", false, false, 125, 0, Integer.MAX_VALUE);
         config.createIntBoolProperty("resetPlayerHatsOnDeath", "hats.config.prop.resetPlayerHatsOnDeath.name", "hats.config.prop.resetPlayerHatsOnDeath.comment", true, false, false);
+        config.createIntProperty("hatSaveInterval", "hats.config.prop.hatSaveInterval.name", "hats.config.prop.hatSaveInterval.comment", true, false, 60, 0, 3600);
         config.createIntBoolProperty("hatRarity", "hats.config.prop.hatRarity.name", "hats.config.prop.hatRarity.comment", true, false, true);
         config.createIntProperty("hatGenerationSeed", "hats.config.prop.hatGenerationSeed.name", "hats.config.prop.hatGenerationSeed.comment", true, true, (new Random(System.currentTimeMillis())).nextInt(), Integer.MIN_VALUE, Integer.MAX_VALUE);
 
@@ -107,6 +113,8 @@ public class Hats
             config.createKeybindProperty("guiKeyBind", "hats.config.prop.guiKeyBind.name", "hats.config.prop.guiKeyBind.comment", Keyboard.KEY_H, false, false, false, false, 0, true);
             config.createStringProperty("personalizeEnabled", "hats.config.prop.personalizeEnabled.name", "hats.config.prop.personalizeEnabled.comment", true, false, "1 2 3 4 5 6 7 8 9");
             config.createIntProperty("maxHatRenders", "hats.config.prop.maxHatRenders.name", "hats.config.prop.maxHatRenders.comment", true, false, 300, 0, 5000);
+            config.createIntProperty("modelCacheSize", "hats.config.prop.modelCacheSize.name", "hats.config.prop.modelCacheSize.comment", true, false, 256, 16, 10000);
+            config.createIntBoolProperty("categoryManifests", "hats.config.prop.categoryManifests.name", "hats.config.prop.categoryManifests.comment", true, false, false);
             config.createIntBoolProperty("showContributorHatsInGui", "hats.config.prop.showContributorHatsInGui.name", "hats.config.prop.showContributorHatsInGui.comment", true, false, true);
 
             config.createIntBoolProperty("renderHats", "hats.config.prop.renderHats.name", "hats.config.prop.renderHats.comment", true, true, true);
@@ -115,6 +123,7 @@ public class Hats
         config.setCurrentCategory("randoMobOptions", "hats.config.cat.randoMobOptions.name", "hats.config.cat.randoMobOptions.comment");
         config.createIntProperty("randomMobHat", "hats.config.prop.randomMobHat.name", "hats.config.prop.randomMobHat.comment", true, false, config.getInt("playerHatsMode") != 4 && isClient ? 0 : 10, 0, 100);
         config.createIntProperty("useRandomContributorHats", "hats.config.prop.useRandomContributorHats.name", "hats.config.prop.useRandomContributorHats.comment", true, false, 80, 0, 100);
+        config.createIntProperty("mobHatsPerTick", "hats.config.prop.mobHatsPerTick.name", "hats.config.prop.mobHatsPerTick.comment", true, false, 200, 1, 10000);
 
         config.createIntBoolProperty("hatBat"       , "hats.config.prop.hatBat.name"        , "hats.config.prop.hatBat.comment"     , true, false, true);
         config.createIntBoolProperty("hatBlaze"     , "hats.config.prop.hatBlaze.name"      , "hats.config.prop.hatBlaze.comment"   , true, false, true);
@@ -212,7 +221,9 @@ public class Hats
     public void serverStopped(FMLServerStoppedEvent event)
     {
         proxy.tickHandlerServer.mobHats.clear();
+        proxy.tickHandlerServer.mobHatQueue.clear();
         proxy.tickHandlerServer.playerHats.clear();
+        proxy.tickHandlerServer.unsavedHats.clear();
         proxy.tickHandlerServer.playerActivity.clear();
         proxy.tickHandlerServer.playerTradeRequests.clear();
         proxy.tickHandlerServer.activeTrades.clear();
@@ -5,6 +5,8 @@ import hats.client.core.HatInfoClient;
 import hats.client.render.HatRendererHelper;
 import hats.common.Hats;
 
+import java.util.List;
+
 
 public class ApiHandler 
 {
@@ -32,24 +34,29 @@ public class ApiHandler
 		return new HatInfoClient(hatName, r, g, b, 255);
 	}
 
+    public static List<String> getHatsStartingWith(String prefix)
+    {
+        return HatHandler.getHatsStartingWith(prefix);
+    }
+
     public static Object getRandomHatInfoWithServerWeightage(int r, int g, int b, int alpha)
     {
-        return new HatInfoClient(HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), true).hatName, r, g, b, alpha);
+        return new HatInfoClient(HatHandler.getRandomHatWithWeightedContributors(true).hatName, r, g, b, alpha);
     }
 
     public static Object getRandomHatInfoWithServerWeightage(int r, int g, int b)
     {
-        return new HatInfoClient(HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), true).hatName, r, g, b, 255);
+        return new HatInfoClient(HatHandler.getRandomHatWithWeightedContributors(true).hatName, r, g, b, 255);
     }
 
     public static Object getRandomHatInfo(int r, int g, int b, int alpha)
     {
-        return new HatInfoClient(HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), false).hatName, r, g, b, alpha);
+        return new HatInfoClient(HatHandler.getRandomHatWithWeightedContributors(false).hatName, r, g, b, alpha);
     }
 
     public static Object getRandomHatInfo(int r, int g, int b)
 	{
-        return new HatInfoClient(HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), false).hatName, r, g, b, 255);
+        return new HatInfoClient(HatHandler.getRandomHatWithWeightedContributors(false).hatName, r, g, b, 255);
 	}
 	
 	public static void renderHat(Object info, float alpha, float hatScale, float mobRenderScaleX, float mobRenderScaleY, float mobRenderScaleZ, float renderYawOffset, float rotationYaw, float rotationPitch, float rotationRoll, float rotatePointVert, float rotatePointHori, float rotatePointSide, float offsetVert, float offsetHori, float offsetSide, boolean forceRender, boolean bindTexture, float renderTick)
@@ -12,6 +12,8 @@ import net.minecraft.util.StatCollector;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class CommandHats extends CommandBase {
 
@@ -40,7 +42,64 @@ public class CommandHats extends CommandBase {
 		{
 			String command = astring[0];
 			
-			if(astring.length == 1)
+			if(command.equalsIgnoreCase("stats"))
+			{
+				if(astring.length >= 2 && astring[1].equalsIgnoreCase("mobs"))
+				{
+					TreeMap<Integer, Integer> counts = Hats.proxy.tickHandlerServer.mobHats.getCounts();
+					icommandsender.addChatMessage(new ChatComponentTranslation("\u00A7e" + StatCollector.translateToLocalFormatted("hats.command.stats.mobs", Hats.proxy.tickHandlerServer.mobHats.size(), counts.size())));
+					for(Map.Entry<Integer, Integer> e : counts.entrySet())
+					{
+						icommandsender.addChatMessage(new ChatComponentTranslation("\u00A77" + StatCollector.translateToLocalFormatted("hats.command.stats.mobsDimension", e.getKey(), e.getValue())));
+					}
+					return;
+				}
+				if(astring.length < 2 || !astring[1].equalsIgnoreCase("load"))
+				{
+					icommandsender.addChatMessage(new ChatComponentTranslation("\u00A7c" + StatCollector.translateToLocal("hats.command.help.stats")));
+					return;
+				}
+				List<HatLoadStats> loads = HatLoadStats.getHistory();
+				if(loads.isEmpty())
+				{
+					icommandsender.addChatMessage(new ChatComponentTranslation("\u00A77" + StatCollector.translateToLocal("hats.command.stats.noLoads")));
+					return;
+				}
+				for(HatLoadStats stats : loads)
+				{
+					icommandsender.addChatMessage(new ChatComponentTranslation("\u00A7e" + StatCollector.translateToLocalFormatted("hats.command.stats.load", stats.id, stats.hatCount, stats.totalNanos / 1000000L, (System.currentTimeMillis() - stats.startTime) / 1000L)));
+					for(HatLoadStats.Phase phase : stats.phases.values())
+					{
+						icommandsender.addChatMessage(new ChatComponentTranslation("\u00A77" + StatCollector.translateToLocalFormatted("hats.command.stats.phase", phase.name, phase.wallNanos / 1000000L, phase.cpuNanos / 1000000L, phase.files, phase.bytes / 1024L) + (phase.note != null ? " (" + phase.note + ")" : "")));
+					}
+				}
+			}
+			else if("pack".startsWith(command.toLowerCase()) && command.length() > 0)
+			{
+				final ICommandSender sender = icommandsender;
+				icommandsender.addChatMessage(new ChatComponentTranslation("\u00A77" + StatCollector.translateToLocal("hats.command.packing")));
+				Thread thread = new Thread("Hats Pack Thread")
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							int packed = HatBundle.pack(HatHandler.hatsFolder);
+							Hats.console(StatCollector.translateToLocalFormatted("hats.command.packed", packed, HatBundle.FILE_NAME));
+							sender.addChatMessage(new ChatComponentTranslation("\u00A77" + StatCollector.translateToLocalFormatted("hats.command.packed", packed, HatBundle.FILE_NAME)));
+						}
+						catch(Exception e)
+						{
+							e.printStackTrace();
+							sender.addChatMessage(new ChatComponentTranslation("\u00A7c" + StatCollector.translateToLocal("hats.command.packFailed")));
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+			else if(astring.length == 1)
 			{
 				if("send".startsWith(command.toLowerCase()))
 				{
@@ -141,15 +200,42 @@ public class CommandHats extends CommandBase {
 	@Override
     public List addTabCompletionOptions(ICommandSender par1ICommandSender, String[] args)
     {
-        return args.length == 1 ? getListOfStringsMatchingLastWord(args, "set", "send", "unlock") : args.length == 2 ? getListOfStringsMatchingLastWord(args, MinecraftServer.getServer().getAllUsernames()) : args.length == 3 ? getListOfStringsMatchingLastWord(args, HatHandler.getAllHatsAsArray()) : null;
+        return args.length == 1 ? getListOfStringsMatchingLastWord(args, "set", "send", "unlock", "pack", "stats") : args.length == 2 && args[0].equalsIgnoreCase("stats") ? getListOfStringsMatchingLastWord(args, "load", "mobs") : args.length == 2 ? getListOfStringsMatchingLastWord(args, MinecraftServer.getServer().getAllUsernames()) : args.length >= 3 ? getHatCompletions(args) : null;
     }
 	
+	/**
+	 * Hat names can have spaces, so complete against everything typed after the player name.
+	 */
+	private List<String> getHatCompletions(String[] args)
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 2; i < args.length; i++)
+		{
+			if(i > 2)
+			{
+				sb.append(" ");
+			}
+			sb.append(args[i]);
+		}
+		String typed = sb.toString();
+		int lastWord = typed.lastIndexOf(' ') + 1;
+		List<String> hats = HatHandler.getHatsStartingWith(typed);
+		for(int i = 0; i < hats.size(); i++)
+		{
+			//The client only replaces the last word, so only hand back what's left of the name from there.
+			hats.set(i, hats.get(i).substring(lastWord));
+		}
+		return hats;
+	}
+	
 	public String getUsageString()
 	{
 		return StatCollector.translateToLocal("hats.command") + " \n" +
 				StatCollector.translateToLocal("hats.command.help.send") + " \n" +
 				StatCollector.translateToLocal("hats.command.help.set") + " \n" +
-				StatCollector.translateToLocal("hats.command.help.unlock");
+				StatCollector.translateToLocal("hats.command.help.unlock") + " \n" +
+				StatCollector.translateToLocal("hats.command.help.pack") + " \n" +
+				StatCollector.translateToLocal("hats.command.help.stats");
 	}
 
 }
@@ -109,35 +109,44 @@ public class CommonProxy
 	
 	public void clearAllHats()
 	{
-		HatHandler.getHatNames().clear();
+		HatHandler.clearHatNames();
 		HatHandler.checksums.clear();
-		HatHandler.categories.clear();
+		HatHandler.clearCategories();
 	}
 	
 	public void openHatsGui()
 	{
 	}
 	
-	public void loadHatFile(File file)
+	public void onRegistryPublished(HatRegistry registry)
+	{
+	}
+	
+	/**
+	 * Whether the loader should hand the parsed TC2Info of this hat to loadHatFile instead of dropping it after validation.
+	 */
+	public boolean keepParsedHat(String hatName)
+	{
+		return false;
+	}
+	
+	public void loadHatFile(File file, HatFileData data)
 	{
 		String hatName = file.getName().substring(0, file.getName().length() - 4).toLowerCase();
-        HatHandler.getActualHatNamesMap().put(file, hatName);
+        HatHandler.putHatName(file, hatName);
+	}
+	
+	public void unloadHatFile(File file, String hatName)
+	{
+		HatHandler.removeHatName(file);
 	}
 	
 	public void remap(String duplicate, String original)
 	{
-		File file = null;
-		for(Map.Entry<File, String> e : HatHandler.getActualHatNamesMap().entrySet())
-		{
-			if(e.getValue().equalsIgnoreCase(original))
-			{
-				file = e.getKey();
-				break;
-			}
-		}
+		File file = HatHandler.getWorkingHatFile(original);
 		if(file != null)
 		{
-			HatHandler.getActualHatNamesMap().put(file, duplicate);
+			HatHandler.putHatAlias(duplicate, file);
 		}
 	}
 	
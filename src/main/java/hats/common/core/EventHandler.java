@@ -13,19 +13,16 @@ import hats.common.packet.PacketSession;
 import ichun.client.keybind.KeyEvent;
 import ichun.common.core.network.PacketHandler;
 import net.minecraft.client.Minecraft;
-import net.minecraft.entity.Entity;
-import net.minecraft.entity.EntityList;
 import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.tileentity.MobSpawnerBaseLogic;
-import net.minecraft.tileentity.TileEntity;
 import net.minecraft.tileentity.TileEntityMobSpawner;
-import net.minecraft.util.AxisAlignedBB;
 import net.minecraft.util.ChatComponentTranslation;
+import net.minecraftforge.event.entity.EntityEvent;
 import net.minecraftforge.event.entity.EntityJoinWorldEvent;
 import net.minecraftforge.event.entity.living.LivingDeathEvent;
+import net.minecraftforge.event.world.WorldEvent;
 
 import java.util.*;
 
@@ -63,53 +60,40 @@ public class EventHandler
     @SubscribeEvent(priority = EventPriority.LOWEST)
     public void onEntitySpawn(EntityJoinWorldEvent event)
     {
-        if(FMLCommonHandler.instance().getEffectiveSide().isClient() || !(event.entity instanceof EntityLivingBase) || !HatHandler.canMobHat((EntityLivingBase)event.entity) || Hats.proxy.tickHandlerServer.mobHats.containsKey(event.entity))
+        if(FMLCommonHandler.instance().getEffectiveSide().isClient() || !(event.entity instanceof EntityLivingBase) || !HatHandler.canMobHat((EntityLivingBase)event.entity) || Hats.proxy.tickHandlerServer.mobHats.contains(event.entity) || Hats.proxy.tickHandlerServer.mobHatQueue.contains(event.entity))
         {
             return;
         }
 
-        EntityLivingBase living = (EntityLivingBase)event.entity;
-
-        boolean fromSpawner = false;
-        for(int k = 0; k < event.entity.worldObj.loadedTileEntityList.size(); k++)
-        {
-            TileEntity te = (TileEntity)event.entity.worldObj.loadedTileEntityList.get(k);
-            if(!HatHandler.isMobSpawner(te.getClass(), te.getClass()))
-            {
-                continue;
-            }
+        //Rolled at the end of the world tick, see MobHatQueue.
+        Hats.proxy.tickHandlerServer.mobHatQueue.add((EntityLivingBase)event.entity);
+    }
 
-            MobSpawnerBaseLogic logic = HatHandler.getMobSpawnerLogic(te.getClass(), te);
-            if(logic.isActivated())
-            {
-                Entity entity = EntityList.createEntityByName(logic.getEntityNameToSpawn(), logic.getSpawnerWorld());
-                if(entity != null)
-                {
-                    if(living.getClass() == entity.getClass())
-                    {
-                        List list = logic.getSpawnerWorld().getEntitiesWithinAABB(entity.getClass(), AxisAlignedBB.getBoundingBox((double)logic.getSpawnerX(), (double)logic.getSpawnerY(), (double)logic.getSpawnerZ(), (double)(logic.getSpawnerX() + 1), (double)(logic.getSpawnerY() + 1), (double)(logic.getSpawnerZ() + 1)).expand((double)(4 * 2), 4.0D, (double)(4 * 2)));
-                        if(list.contains(living))
-                        {
-                            fromSpawner = true;
-                            break;
-                        }
-                    }
-                }
-            }
-        }
-        HatInfo hatInfo;
-        if(living.getEntityData().hasKey("Hats_hatInfo"))
+    @SubscribeEvent
+    public void onEntityConstructing(EntityEvent.EntityConstructing event)
+    {
+        if(event.entity instanceof EntityPlayerMP)
         {
-            hatInfo = new HatInfo(living.getEntityData().getString("Hats_hatInfo"));
+            event.entity.registerExtendedProperties(HatSaveProperties.NAME, new HatSaveProperties());
         }
-        else
+    }
+
+    @SubscribeEvent
+    public void onWorldLoad(WorldEvent.Load event)
+    {
+        if(!event.world.isRemote)
         {
-            hatInfo  = living.getRNG().nextFloat() < ((float)Hats.config.getInt("randomMobHat") / 100F) && !fromSpawner ? HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), Hats.config.getSessionInt("playerHatsMode") == 4 && Hats.config.getInt("hatRarity") == 1) : new HatInfo();
-            living.getEntityData().setString("Hats_hatInfo", hatInfo.hatName);
+            event.world.addWorldAccess(new MobHatWorldAccess());
         }
-        if(!hatInfo.hatName.isEmpty())
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event)
+    {
+        if(!event.world.isRemote)
         {
-            Hats.proxy.tickHandlerServer.mobHats.put(living, hatInfo.hatName);
+            Hats.proxy.tickHandlerServer.mobHats.clearDimension(event.world.provider.dimensionId);
+            Hats.proxy.tickHandlerServer.mobHatQueue.clearDimension(event.world.provider.dimensionId);
         }
     }
 
@@ -163,20 +147,13 @@ public class EventHandler
                         }
                         else if(executer != null && Hats.config.getSessionString("currentKing").equalsIgnoreCase(executer.getCommandSenderName()))
                         {
-                            TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(executer.getCommandSenderName());
-
-                            ArrayList<String> newHats = HatHandler.getAllHatNamesAsList();
-
-                            for(Map.Entry<String, Integer> e : playerHatsList.entrySet())
-                            {
-                                newHats.remove(e.getKey());
-                            }
+                            HatCounts playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(executer.getCommandSenderName());
 
                             EntityPlayerMP newKingEnt = FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().func_152612_a(executer.getCommandSenderName());
 
-                            if(newKingEnt != null && !newHats.isEmpty())
+                            if(newKingEnt != null)
                             {
-                                HatHandler.unlockHat(newKingEnt, newHats.get(newKingEnt.worldObj.rand.nextInt(newHats.size())));
+                                HatHandler.unlockHat(newKingEnt, HatHandler.getRandomHatNotIn(playerHatsList, false));
                             }
                         }
                     }
@@ -228,20 +205,9 @@ public class EventHandler
 
     public static void sendPlayerSessionInfo(EntityPlayer player)
     {
-        TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(player.getCommandSenderName());
+        HatCounts playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(player.getCommandSenderName());
 
-        StringBuilder sb = new StringBuilder();
-        for(Map.Entry<String, Integer> e : playerHatsList.entrySet())
-        {
-            sb.append(e.getKey());
-            if(e.getValue() != 1)
-            {
-                sb.append(">" + e.getValue());
-            }
-            sb.append(":");
-        }
-
-        PacketHandler.sendToPlayer(Hats.channels, new PacketSession(Hats.config.getSessionInt("playerHatsMode"), Hats.config.getInt("hatRarity") == 0 ? 0 : Hats.config.getSessionInt("hatGenerationSeed"), player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getBoolean("Hats_hasVisited") && player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getInteger("Hats_hatMode") == Hats.config.getSessionInt("playerHatsMode") || Hats.config.getInt("firstJoinMessage") != 1, Hats.config.getSessionString("lockedHat"), Hats.config.getSessionString("currentKing"), sb.toString().length() > 0 ? sb.toString().substring(0, sb.toString().length() - 1) : sb.toString()), player);
+        PacketHandler.sendToPlayer(Hats.channels, new PacketSession(Hats.config.getSessionInt("playerHatsMode"), Hats.config.getInt("hatRarity") == 0 ? 0 : Hats.config.getSessionInt("hatGenerationSeed"), player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getBoolean("Hats_hasVisited") && player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getInteger("Hats_hatMode") == Hats.config.getSessionInt("playerHatsMode") || Hats.config.getInt("firstJoinMessage") != 1, Hats.config.getSessionString("lockedHat"), Hats.config.getSessionString("currentKing"), playerHatsList.writeToString()), player);
     }
 
     @SubscribeEvent
@@ -254,38 +220,19 @@ public class EventHandler
             FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().sendChatMsg(new ChatComponentTranslation("hats.kingOfTheHat.update.playerJoin", event.player.getCommandSenderName()));
         }
 
-        String playerHats = event.player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getString("Hats_unlocked");
+        HatCounts playerHats = Hats.proxy.tickHandlerServer.getPlayerHatsList(event.player.getCommandSenderName());
 
-        if(Hats.config.getSessionInt("playerHatsMode") == 5)
+        if(Hats.config.getSessionInt("playerHatsMode") == 5 && !Hats.config.getSessionString("currentKing").equalsIgnoreCase(event.player.getCommandSenderName()))
         {
-            if(!Hats.config.getSessionString("currentKing").equalsIgnoreCase(event.player.getCommandSenderName()))
-            {
-                playerHats = "";
-                NBTTagCompound persistentTag = event.player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
-                persistentTag.setString("Hats_unlocked", playerHats);
-                persistentTag.setString("Hats_wornHat", "");
-                event.player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
-            }
+            playerHats.clear();
+            HatSaveData.writePlayerHats(event.player, playerHats);
+            NBTTagCompound persistentTag = event.player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
+            persistentTag.setString("Hats_wornHat", "");
+            event.player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
         }
-
-        TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(event.player.getCommandSenderName());
-
-        playerHatsList.clear();
-        String[] hatsWithCount = playerHats.split(":");
-        for(String hat : hatsWithCount)
+        else
         {
-            String[] hatAndCount = hat.split(">");
-            if(!hatAndCount[0].trim().isEmpty())
-            {
-                try
-                {
-                    playerHatsList.put(hatAndCount[0], hatAndCount.length == 1 ? 1 : Integer.parseInt(hatAndCount[1]));
-                }
-                catch(NumberFormatException e)
-                {
-                    playerHatsList.put(hatAndCount[0], 1);
-                }
-            }
+            HatSaveData.readPlayerHats(event.player, playerHats);
         }
 
         String hatName = event.player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG).getString("Hats_wornHat");
@@ -343,9 +290,17 @@ public class EventHandler
         }
     }
 
+    @SubscribeEvent
+    public void onPlayerChangedDimension(PlayerEvent.PlayerChangedDimensionEvent event)
+    {
+        Hats.proxy.tickHandlerServer.saveHats(event.player);
+    }
+
     @SubscribeEvent
     public void onPlayerLogout(PlayerEvent.PlayerLoggedOutEvent event)
     {
+        Hats.proxy.tickHandlerServer.saveHats(event.player);
+
         if(Hats.config.getSessionInt("playerHatsMode") == 5 && Hats.config.getSessionString("currentKing").equalsIgnoreCase(event.player.getCommandSenderName()))
         {
             //King logged out
@@ -0,0 +1,374 @@
+package hats.common.core;
+
+import hats.common.Hats;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * A single file holding many hats, so big libraries don't have to open thousands of tiny files.
+ * Layout: magic, version, count, then an index sorted by lower case hat name (name, offset, length, checksum, flags), then the hat bytes.
+ * The file is memory mapped and hats are read by slice. Loose .tc2 files in the hats folder override bundled hats of the same name.
+ * A mapped file can't be deleted on Windows until it's garbage collected, so each pack goes in a new numbered file
+ * (hats.bundle.1, hats.bundle.2...) instead of replacing the one in use. The newest is loaded and older ones are cleaned up once they can be.
+ */
+public class HatBundle
+{
+    public static final String FILE_NAME = "hats.bundle";
+
+    public static final int MAGIC = 0x48415442; //HATB
+    public static final int VERSION = 1;
+
+    public static final int FLAG_READABLE = 1;
+    public static final int FLAG_TAMPERED = 2;
+
+    public final File file;
+
+    public final String[] names;
+    public final String[] keys;
+    public final long[] offsets;
+    public final int[] lengths;
+    public final String[] checksums;
+    public final byte[] flags;
+
+    private final MappedByteBuffer buffer;
+
+    private HatBundle(File file, MappedByteBuffer buffer, int count)
+    {
+        this.file = file;
+        this.buffer = buffer;
+        names = new String[count];
+        keys = new String[count];
+        offsets = new long[count];
+        lengths = new int[count];
+        checksums = new String[count];
+        flags = new byte[count];
+    }
+
+    public int size()
+    {
+        return names.length;
+    }
+
+    /**
+     * Binary search on the sorted index, returns -1 if the hat isn't bundled.
+     */
+    public int indexOf(String hatName)
+    {
+        String key = hatName.toLowerCase();
+        int low = 0;
+        int high = keys.length - 1;
+        while(low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = keys[mid].compareTo(key);
+            if(cmp < 0)
+            {
+                low = mid + 1;
+            }
+            else if(cmp > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isReadable(int i)
+    {
+        return (flags[i] & FLAG_READABLE) != 0;
+    }
+
+    public boolean isTampered(int i)
+    {
+        return (flags[i] & FLAG_TAMPERED) != 0;
+    }
+
+    public byte[] getBytes(int i)
+    {
+        byte[] bytes = new byte[lengths[i]];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int)offsets[i]);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    public InputStream openStream(int i)
+    {
+        return new ByteArrayInputStream(getBytes(i));
+    }
+
+    /**
+     * TC2Info can only parse from a file, so bundled hats that need a model get written out to a temp file first.
+     */
+    public File extract(int i) throws IOException
+    {
+        File temp = File.createTempFile("hats", ".tc2");
+        temp.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(temp);
+        try
+        {
+            stream.write(getBytes(i));
+        }
+        finally
+        {
+            stream.close();
+        }
+        return temp;
+    }
+
+    /**
+     * Opens the newest bundle in the hats folder, or null if there isn't one. Older bundles are deleted if they're no longer mapped.
+     */
+    public static HatBundle openLatest(File hatsFolder)
+    {
+        File latest = null;
+        int latestNumber = -1;
+        ArrayList<File> bundles = new ArrayList<File>();
+        File[] files = hatsFolder.listFiles();
+        for(File file : files != null ? files : new File[0])
+        {
+            int number = getBundleNumber(file);
+            if(number >= 0)
+            {
+                bundles.add(file);
+                if(number > latestNumber)
+                {
+                    latest = file;
+                    latestNumber = number;
+                }
+            }
+        }
+        for(File file : bundles)
+        {
+            if(file != latest)
+            {
+                //Fails quietly while the old bundle is still mapped, it's tried again on the next load.
+                file.delete();
+            }
+        }
+        return latest != null ? open(latest) : null;
+    }
+
+    /**
+     * 0 for hats.bundle, n for hats.bundle.n, -1 if it isn't a bundle.
+     */
+    public static int getBundleNumber(File file)
+    {
+        String name = file.getName();
+        if(name.equals(FILE_NAME))
+        {
+            return 0;
+        }
+        if(name.startsWith(FILE_NAME + "."))
+        {
+            try
+            {
+                int number = Integer.parseInt(name.substring(FILE_NAME.length() + 1));
+                return number > 0 ? number : -1;
+            }
+            catch(NumberFormatException e)
+            {
+            }
+        }
+        return -1;
+    }
+
+    public static HatBundle open(File file)
+    {
+        if(!file.exists())
+        {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            DataInputStream stream = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()));
+            if(stream.readInt() != MAGIC || stream.readInt() != VERSION)
+            {
+                Hats.console(file.getName() + " is not a hat bundle or was made by a different version, ignoring it.", true);
+                return null;
+            }
+            int count = stream.readInt();
+            HatBundle bundle = new HatBundle(file, buffer, count);
+            for(int i = 0; i < count; i++)
+            {
+                bundle.names[i] = stream.readUTF();
+                bundle.keys[i] = bundle.names[i].toLowerCase();
+                bundle.offsets[i] = stream.readLong();
+                bundle.lengths[i] = stream.readInt();
+                bundle.checksums[i] = stream.readUTF();
+                bundle.flags[i] = stream.readByte();
+            }
+            return bundle;
+        }
+        catch(Exception e)
+        {
+            Hats.console("Failed to read hat bundle " + file.getName() + "!", true);
+            e.printStackTrace();
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if(raf != null)
+                {
+                    //The mapping stays valid after the channel is closed.
+                    raf.close();
+                }
+            }
+            catch(IOException e){}
+        }
+    }
+
+    /**
+     * Packs every readable .tc2 in the root of the hats folder into a new bundle, picked up on the next load. Returns the number of hats packed.
+     */
+    public static int pack(File hatsFolder) throws IOException
+    {
+        ArrayList<HatFileData> hats = new ArrayList<HatFileData>();
+        File[] files = hatsFolder.listFiles();
+        for(File file : files)
+        {
+            if(!file.isDirectory() && file.getName().endsWith(".tc2"))
+            {
+                HatFileData data = HatFileData.read(file);
+                if(data.readable)
+                {
+                    hats.add(data);
+                }
+            }
+        }
+        Collections.sort(hats, new java.util.Comparator<HatFileData>()
+        {
+            @Override
+            public int compare(HatFileData o1, HatFileData o2)
+            {
+                return getName(o1.file).toLowerCase().compareTo(getName(o2.file).toLowerCase());
+            }
+        });
+
+        //Work out the index size first so every offset can be written up front.
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        long headerSize = 12L;
+        for(HatFileData data : hats)
+        {
+            index.writeUTF(getName(data.file));
+            index.writeLong(0L);
+            index.writeInt(0);
+            index.writeUTF(data.checksum);
+            index.writeByte(0);
+        }
+        long offset = headerSize + indexBytes.size();
+
+        indexBytes.reset();
+        for(HatFileData data : hats)
+        {
+            index.writeUTF(getName(data.file));
+            index.writeLong(offset);
+            index.writeInt((int)data.size);
+            index.writeUTF(data.checksum);
+            index.writeByte((data.readable ? FLAG_READABLE : 0) | (data.tampered ? FLAG_TAMPERED : 0));
+            offset += data.size;
+        }
+
+        File temp = new File(hatsFolder, FILE_NAME + ".tmp");
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(hats.size());
+            indexBytes.writeTo(stream);
+
+            byte[] buffer = new byte[65536];
+            for(HatFileData data : hats)
+            {
+                InputStream in = new FileInputStream(data.file);
+                try
+                {
+                    long remaining = data.size;
+                    int length;
+                    while(remaining > 0 && (length = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) > 0)
+                    {
+                        stream.write(buffer, 0, length);
+                        remaining -= length;
+                    }
+                    if(remaining != 0)
+                    {
+                        throw new IOException(data.file.getName() + " changed while it was being packed!");
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        int number = 0;
+        for(File file : hatsFolder.listFiles())
+        {
+            number = Math.max(number, getBundleNumber(file));
+        }
+        //Never the name of a bundle that might still be mapped.
+        File bundleFile = new File(hatsFolder, FILE_NAME + "." + (number + 1));
+        if(!temp.renameTo(bundleFile))
+        {
+            temp.delete();
+            throw new IOException("Unable to write " + bundleFile.getName());
+        }
+        return hats.size();
+    }
+
+    private static String getName(File file)
+    {
+        return file.getName().substring(0, file.getName().length() - 4);
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package hats.common.core;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How many of each hat a player has, or is offering in a trade. Hat IDs from HatIds and their counts are kept in two sorted int arrays,
+ * which is a small fraction of the size of a TreeMap of names to boxed Integers. A bitset over the IDs is kept alongside
+ * so rewards can be drawn straight from the hats a player doesn't own.
+ */
+public class HatCounts
+{
+    private int[] ids;
+    private int[] counts;
+    private int size;
+    private long[] owned;
+
+    /**
+     * Draws over the hats not in here, without and with rarity. Built when first asked for and kept up to date as hats come and go.
+     */
+    private final UnownedHatSampler[] unownedSamplers = new UnownedHatSampler[2];
+
+    public HatCounts()
+    {
+        ids = new int[8];
+        counts = new int[8];
+        owned = new long[0];
+    }
+
+    public HatCounts(HatCounts other)
+    {
+        ids = Arrays.copyOf(other.ids, Math.max(other.size, 8));
+        counts = Arrays.copyOf(other.counts, Math.max(other.size, 8));
+        owned = other.owned.clone();
+        size = other.size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int getIdAt(int i)
+    {
+        return ids[i];
+    }
+
+    public int getCountAt(int i)
+    {
+        return counts[i];
+    }
+
+    public String getNameAt(int i)
+    {
+        return HatIds.getName(ids[i]);
+    }
+
+    public boolean contains(int id)
+    {
+        return id >= 0 && (id >> 6) < owned.length && (owned[id >> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Bit n of word n / 64 is set if hat ID n is in here. Shared, don't modify it.
+     */
+    public long[] getOwnedBits()
+    {
+        return owned;
+    }
+
+    public boolean contains(String hatName)
+    {
+        return contains(HatIds.findId(hatName));
+    }
+
+    /**
+     * How many of this hat there are, 0 if none.
+     */
+    public int get(int id)
+    {
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        return i >= 0 ? counts[i] : 0;
+    }
+
+    /**
+     * Sets the count for this hat, removing it if the count isn't positive.
+     */
+    public void set(int id, int count)
+    {
+        if(id < 0)
+        {
+            return;
+        }
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if(i >= 0)
+        {
+            if(count > 0)
+            {
+                counts[i] = count;
+            }
+            else
+            {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+                size--;
+                owned[id >> 6] &= ~(1L << id);
+                updateSamplers(id, false);
+            }
+        }
+        else if(count > 0)
+        {
+            i = -(i + 1);
+            if(size == ids.length)
+            {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+                counts = Arrays.copyOf(counts, ids.length);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            ids[i] = id;
+            counts[i] = count;
+            size++;
+            if((id >> 6) >= owned.length)
+            {
+                owned = Arrays.copyOf(owned, (id >> 6) + 1);
+            }
+            owned[id >> 6] |= 1L << id;
+            updateSamplers(id, true);
+        }
+    }
+
+    private void updateSamplers(int id, boolean has)
+    {
+        for(UnownedHatSampler sampler : unownedSamplers)
+        {
+            if(sampler != null)
+            {
+                sampler.setOwned(id, has);
+            }
+        }
+    }
+
+    /**
+     * The draw over hats not in here for this rarity table, rebuilt if the table has changed since.
+     */
+    public UnownedHatSampler getUnownedSampler(HatRarityTable table, boolean withRarity)
+    {
+        int i = withRarity ? 1 : 0;
+        if(unownedSamplers[i] == null || unownedSamplers[i].table != table)
+        {
+            unownedSamplers[i] = new UnownedHatSampler(table, withRarity, this);
+        }
+        return unownedSamplers[i];
+    }
+
+    public void add(int id, int count)
+    {
+        set(id, get(id) + count);
+    }
+
+    public void remove(int id)
+    {
+        set(id, 0);
+    }
+
+    public void clear()
+    {
+        size = 0;
+        Arrays.fill(owned, 0L);
+        Arrays.fill(unownedSamplers, null);
+    }
+
+    /**
+     * Parses the "name>count:name:name>count" format used in NBT and packets. A missing count means one.
+     */
+    public void readFrom(String s)
+    {
+        clear();
+        String[] hatsWithCount = s.split(":");
+        for(String hat : hatsWithCount)
+        {
+            String[] hatAndCount = hat.split(">");
+            if(!hatAndCount[0].trim().isEmpty())
+            {
+                int count;
+                try
+                {
+                    count = hatAndCount.length == 1 ? 1 : Integer.parseInt(hatAndCount[1]);
+                }
+                catch(NumberFormatException e)
+                {
+                    count = 1;
+                }
+                set(HatIds.getId(hatAndCount[0]), count);
+            }
+        }
+    }
+
+    /**
+     * Writes the "name>count:name:name>count" format used in NBT and packets, spelling names as the library does.
+     */
+    public String writeToString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < size; i++)
+        {
+            if(i > 0)
+            {
+                sb.append(":");
+            }
+            sb.append(HatHandler.getNameForHat(getNameAt(i)));
+            if(counts[i] > 1)
+            {
+                sb.append(">").append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Names to counts from a client's packet. Names the server has never seen are dropped instead of being given an ID,
+     * a client can't own a hat the server doesn't know about and IDs are never freed.
+     */
+    public void readFrom(Map<String, Integer> hats)
+    {
+        clear();
+        for(Map.Entry<String, Integer> e : hats.entrySet())
+        {
+            if(e.getValue() != null)
+            {
+                add(HatIds.findId(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Names to counts, for the trade packets which still talk in names.
+     */
+    public TreeMap<String, Integer> toNameMap()
+    {
+        TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+        for(int i = 0; i < size; i++)
+        {
+            map.put(HatHandler.getNameForHat(getNameAt(i)), counts[i]);
+        }
+        return map;
+    }
+}
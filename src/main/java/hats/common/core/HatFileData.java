@@ -0,0 +1,150 @@
+package hats.common.core;
+
+import hats.common.Hats;
+import ichun.common.core.techne.TC2Info;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * The result of hashing and parsing a single hat file off the loader thread.
+ * Nothing in here touches the shared HatHandler maps, that's left to the merge step.
+ * Entries restored from the HatLibraryIndex have no TC2Info, only the verdicts.
+ */
+public class HatFileData
+{
+    public final File file;
+
+    public final long size;
+
+    public final long lastModified;
+
+    public final String checksum;
+
+    public final boolean readable;
+
+    public final boolean tampered;
+
+    public final TC2Info info;
+
+    public final long nanos;
+
+    public final long hashNanos;
+
+    public HatFileData(File file, long size, long lastModified, String checksum, boolean readable, boolean tampered, TC2Info info, long nanos)
+    {
+        this(file, size, lastModified, checksum, readable, tampered, info, nanos, 0L);
+    }
+
+    public HatFileData(File file, long size, long lastModified, String checksum, boolean readable, boolean tampered, TC2Info info, long nanos, long hashNanos)
+    {
+        this.file = file;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+        this.readable = readable;
+        this.tampered = tampered;
+        this.info = info;
+        this.nanos = nanos;
+        this.hashNanos = hashNanos;
+    }
+
+    public static HatFileData read(File file)
+    {
+        long start = System.nanoTime();
+        String md5 = getChecksum(file);
+        HatFileData data = read(file, md5);
+        long nanos = System.nanoTime() - start;
+        return new HatFileData(file, data.size, data.lastModified, md5, data.readable, data.tampered, data.info, nanos, nanos - data.nanos);
+    }
+
+    /**
+     * Parses a hat file whose checksum is already known, eg. one we just received and hashed in memory.
+     * The parsed TC2Info is only kept if the proxy wants it for model building, everyone else only needs the verdicts.
+     */
+    public static HatFileData read(File file, String checksum)
+    {
+        long start = System.nanoTime();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        TC2Info info = null;
+        boolean readable = false;
+        boolean tampered = false;
+        if(file.getName().endsWith(".tc2"))
+        {
+            info = TC2Info.readTechneFile(file);
+            readable = info != null;
+            tampered = readable && info.tampered;
+            if(readable && !Hats.proxy.keepParsedHat(file.getName().substring(0, file.getName().length() - 4).toLowerCase()))
+            {
+                info = null;
+            }
+        }
+        return new HatFileData(file, size, lastModified, checksum, readable, tampered, info, System.nanoTime() - start);
+    }
+
+    public static String getChecksum(File file)
+    {
+        InputStream stream = null;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            stream = new FileInputStream(file);
+            byte[] buffer = new byte[65536];
+            int length;
+            while((length = stream.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, length);
+            }
+            return toHex(digest.digest());
+        }
+        catch(Exception e)
+        {
+            return "";
+        }
+        finally
+        {
+            try
+            {
+                if(stream != null)
+                {
+                    stream.close();
+                }
+            }
+            catch(IOException e){}
+        }
+    }
+
+    public static String getChecksum(List<byte[]> parts)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for(byte[] part : parts)
+            {
+                digest.update(part);
+            }
+            return toHex(digest.digest());
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            return "";
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
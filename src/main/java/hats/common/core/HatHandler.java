@@ -11,19 +11,24 @@ import hats.common.packet.PacketRequestHat;
 import hats.common.packet.PacketString;
 import ichun.common.core.network.PacketHandler;
 import ichun.common.core.techne.TC2Info;
-import ichun.common.core.util.MD5Checksum;
 import net.minecraft.client.Minecraft;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
 import net.minecraft.entity.EntityLivingBase;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.tileentity.MobSpawnerBaseLogic;
 import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.AxisAlignedBB;
 import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
 
 import java.io.*;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -46,7 +51,12 @@ public class HatHandler
 
     public static boolean readHatFromFile(File file, boolean category)
     {
-        String md5 = MD5Checksum.getMD5Checksum(file);
+        return readHatFromFile(file, category, null);
+    }
+
+    public static boolean readHatFromFile(File file, boolean category, HatFileData data)
+    {
+        String md5 = data != null ? data.checksum : HatFileData.getChecksum(file);
 
         if(HatHandler.checksums.get(md5) == null)
         {
@@ -67,66 +77,251 @@ public class HatHandler
 
         if(file.getName().endsWith(".tc2"))
         {
-            TC2Info info = TC2Info.readTechneFile(file);
+            if(data == null)
+            {
+                data = HatFileData.read(file, md5);
+            }
 
-            if(info == null)
+            if(!data.readable)
             {
                 Hats.console("Failed to load: " + file.getName() + " threw a generic exception! If no exception was printed, it's most likely the model has an invalid texture", true);
                 return false;
             }
 
-            if(Hats.config.getInt("safeLoad") == 1 && info.tampered)
+            if(Hats.config.getInt("safeLoad") == 1 && data.tampered)
             {
                 Hats.console("Rejecting " + file.getName() + "! It contains files which are not XML or PNG files!", true);
                 return false;
             }
 
-            Hats.proxy.loadHatFile(file);
+            Hats.proxy.loadHatFile(file, data);
             return true;
         }
         return false;
     }
 
+    /**
+     * Rereads a single hat file that was added or changed, dropping whatever was previously loaded from it.
+     */
+    public static boolean reloadHatFile(File file, boolean category)
+    {
+        if(checksums.containsValue(file))
+        {
+            unloadHatFile(file);
+        }
+        return readHatFromFile(file, category);
+    }
+
+    public static void unloadHatFile(File file)
+    {
+        Iterator<Entry<String, File>> ite = checksums.entrySet().iterator();
+        while(ite.hasNext())
+        {
+            if(ite.next().getValue().equals(file))
+            {
+                ite.remove();
+            }
+        }
+        String hatName = getActualHatNamesMap().get(file);
+        if(hatName != null)
+        {
+            Hats.proxy.unloadHatFile(file, hatName);
+        }
+    }
+
+    /**
+     * Registers a hat from the bundle. Loose files in the hats folder win, so bundled hats whose name is already loaded are skipped.
+     */
+    public static boolean loadBundledHat(int i)
+    {
+        if(bundle == null)
+        {
+            return false;
+        }
+        File file = new File(hatsFolder, bundle.names[i] + ".tc2");
+        if(file.exists() || hatFiles.containsKey(bundle.keys[i]))
+        {
+            return false;
+        }
+        return readHatFromFile(file, false, new HatFileData(file, bundle.lengths[i], bundle.file.lastModified(), bundle.checksums[i], bundle.isReadable(i), bundle.isTampered(i), null, 0L));
+    }
+
+    /**
+     * Opens a loaded hat for reading, whether it's a loose file or packed in the bundle.
+     */
+    public static InputStream openHatStream(File file) throws IOException
+    {
+        if(!file.exists() && bundle != null)
+        {
+            int i = bundle.indexOf(file.getName().substring(0, file.getName().length() - 4));
+            if(i >= 0)
+            {
+                return bundle.openStream(i);
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    public static long getHatSize(File file)
+    {
+        if(!file.exists() && bundle != null)
+        {
+            int i = bundle.indexOf(file.getName().substring(0, file.getName().length() - 4));
+            if(i >= 0)
+            {
+                return bundle.lengths[i];
+            }
+        }
+        return file.length();
+    }
+
     public static int loadCategory(File dir)
+    {
+        return loadCategory(dir, null);
+    }
+
+    public static int loadCategory(File dir, Map<File, HatFileData> preloaded)
     {
         int hatCount = 0;
         if(dir.isDirectory())
         {
-            ArrayList<String> hatsToLoad = new ArrayList<String>();
             ArrayList<String> categoryHats = new ArrayList<String>();
+            HashSet<String> members = new HashSet<String>();
             File[] files = dir.listFiles();
             for(File file : files)
             {
                 if(file.getName().endsWith(".tc2"))
                 {
                     String hatName = file.getName().substring(0, file.getName().length() - 4);
-                    hatsToLoad.add(hatName.toLowerCase());
-                    categoryHats.add(hatName);
-                    for(Map.Entry<File, String> e : HatHandler.getActualHatNamesMap().entrySet())
+                    if(members.add(hatName.toLowerCase()))
                     {
-                        String hatEntryName = e.getValue();
-                        for(int i = hatsToLoad.size() - 1; i >= 0; i--)
-                        {
-                            String hatCategoryEntryName = hatsToLoad.get(i);
-                            if(hatCategoryEntryName.equalsIgnoreCase(hatEntryName))
-                            {
-                                hatsToLoad.remove(i);
-                                break;
-                            }
-                        }
+                        categoryHats.add(hatName);
                     }
-                    if(!file.isDirectory() && HatHandler.readHatFromFile(file, true) && !dir.getName().equalsIgnoreCase("Favourites"))
+                    if(!file.isDirectory() && HatHandler.readHatFromFile(file, true, preloaded != null ? preloaded.get(file) : null) && !dir.getName().equalsIgnoreCase("Favourites"))
                     {
                         hatCount++;
                     }
                 }
             }
+            //Hats referenced by the manifest are loaded from wherever they actually are, nothing to read here.
+            for(String hatName : readCategoryManifest(dir))
+            {
+                if(members.add(hatName.toLowerCase()))
+                {
+                    categoryHats.add(hatName);
+                }
+            }
 
-            categories.put(dir.getName(), categoryHats);
+            setCategory(dir.getName(), categoryHats);
         }
         return hatCount;
     }
 
+    public static void setCategory(String category, ArrayList<String> hats)
+    {
+        HashSet<String> members = new HashSet<String>();
+        for(String hat : hats)
+        {
+            members.add(hat.toLowerCase());
+        }
+        categories.put(category, hats);
+        categoryMembers.put(category, members);
+    }
+
+    public static void removeCategory(String category)
+    {
+        categories.remove(category);
+        categoryMembers.remove(category);
+    }
+
+    public static void clearCategories()
+    {
+        categories.clear();
+        categoryMembers.clear();
+    }
+
+    public static void addCategoryMember(String category, String hatName)
+    {
+        HashSet<String> members = categoryMembers.get(category);
+        if(members == null)
+        {
+            setCategory(category, new ArrayList<String>());
+            members = categoryMembers.get(category);
+        }
+        if(members.add(hatName.toLowerCase()))
+        {
+            categories.get(category).add(hatName);
+        }
+    }
+
+    public static void removeCategoryMember(String category, String hatName)
+    {
+        HashSet<String> members = categoryMembers.get(category);
+        if(members != null && members.remove(hatName.toLowerCase()))
+        {
+            ArrayList<String> hats = categories.get(category);
+            for(int i = hats.size() - 1; i >= 0; i--)
+            {
+                if(hats.get(i).equalsIgnoreCase(hatName))
+                {
+                    hats.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    public static ArrayList<String> readCategoryManifest(File dir)
+    {
+        ArrayList<String> hats = new ArrayList<String>();
+        File manifest = new File(dir, CATEGORY_MANIFEST);
+        if(manifest.exists())
+        {
+            try
+            {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+                String line;
+                while((line = reader.readLine()) != null)
+                {
+                    if(!line.trim().isEmpty())
+                    {
+                        hats.add(line.trim());
+                    }
+                }
+                reader.close();
+            }
+            catch(IOException e)
+            {
+                Hats.console("Failed to read the category list for " + dir.getName() + "!", true);
+            }
+        }
+        return hats;
+    }
+
+    public static void writeCategoryManifest(File dir, Collection<String> hats)
+    {
+        File manifest = new File(dir, CATEGORY_MANIFEST);
+        try
+        {
+            if(hats.isEmpty())
+            {
+                manifest.delete();
+                return;
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+            for(String hat : hats)
+            {
+                writer.write(hat);
+                writer.write("\n");
+            }
+            writer.close();
+        }
+        catch(IOException e)
+        {
+            Hats.console("Failed to write the category list for " + dir.getName() + "!", true);
+        }
+    }
+
     public static void deleteHat(String hatName, boolean disable)
     {
         deleteHat(hatsFolder, hatName, disable);
@@ -166,6 +361,19 @@ public class HatHandler
                 break;
             }
         }
+        if(!disable)
+        {
+            ArrayList<String> manifest = readCategoryManifest(dir);
+            for(int i = manifest.size() - 1; i >= 0; i--)
+            {
+                if(manifest.get(i).equalsIgnoreCase(hatName))
+                {
+                    manifest.remove(i);
+                    writeCategoryManifest(dir, manifest);
+                    break;
+                }
+            }
+        }
         files = dir.listFiles();
         for(File file : files)
         {
@@ -187,127 +395,134 @@ public class HatHandler
         {
             return false;
         }
-        ArrayList<String> favs = categories.get(category);
-        if(favs != null)
-        {
-            for(String s : favs)
-            {
-                if(s.equalsIgnoreCase(hatName))
-                {
-                    return true;
-                }
-            }
-        }
-        return false;
+        Set<String> members = registry.categoryMembers.get(category);
+        return members != null && members.contains(hatName.toLowerCase());
     }
 
     public static boolean isContributor(String hatName)
     {
-        ArrayList<String> favs = categories.get("Contributors");
-        if(favs != null)
+        Set<String> members = registry.categoryMembers.get("Contributors");
+        return members != null && members.contains(hatName.toLowerCase());
+    }
+
+    public static void addToCategory(String hatName, String category)
+    {
+        synchronized(registryLock)
         {
-            for(String s : favs)
-            {
-                if(s.equalsIgnoreCase(hatName))
-                {
-                    return true;
-                }
-            }
+            addToCategoryLocked(hatName, category);
+            publishRegistry();
         }
-        return false;
     }
 
-    public static void addToCategory(String hatName, String category)
+    private static void addToCategoryLocked(String hatName, String category)
     {
-        ArrayList<String> favs = categories.get(category);
-        if(favs != null)
+        HashSet<String> members = categoryMembers.get(category);
+        if(members != null && !members.contains(hatName.toLowerCase()))
         {
-            boolean contained = false;
-            for(int i = favs.size() - 1; i >= 0; i--)
+            File hatFile = getWorkingHatFile(hatName);
+            if(hatFile != null)
             {
-                String fav = favs.get(i);
-                if(fav.equalsIgnoreCase(hatName))
+                File dir = new File(hatsFolder, "/" + category);
+                if(Hats.config.getInt("categoryManifests") == 1)
                 {
-                    contained = true;
-                    break;
+                    ArrayList<String> manifest = readCategoryManifest(dir);
+                    manifest.add(hatName);
+                    writeCategoryManifest(dir, manifest);
                 }
-            }
-            if(!contained)
-            {
-                for(Map.Entry<File, String> e : getHatNames().entrySet())
+                else
                 {
-                    if(hatName.toLowerCase().equalsIgnoreCase(e.getValue()))
-                    {
-                        File favFile = new File(hatsFolder, "/" + category + "/" + hatName + ".tc2");
+                    File favFile = new File(dir, hatName + ".tc2");
 
-                        InputStream inStream = null;
-                        OutputStream outStream = null;
+                    InputStream inStream = null;
+                    OutputStream outStream = null;
 
-                        try
-                        {
-                            inStream = new FileInputStream(e.getKey());
-                            outStream = new FileOutputStream(favFile);
+                    try
+                    {
+                        inStream = openHatStream(hatFile);
+                        outStream = new FileOutputStream(favFile);
 
-                            byte[] buffer = new byte[1024];
+                        byte[] buffer = new byte[65536];
 
-                            int length;
+                        int length;
 
-                            while ((length = inStream.read(buffer)) > 0)
-                            {
-                                outStream.write(buffer, 0, length);
-                            }
+                        while ((length = inStream.read(buffer)) > 0)
+                        {
+                            outStream.write(buffer, 0, length);
                         }
-                        catch(Exception e1){}
+                    }
+                    catch(Exception e1){}
 
-                        try
+                    try
+                    {
+                        if(inStream != null)
                         {
-                            if(inStream != null)
-                            {
-                                inStream.close();
-                            }
+                            inStream.close();
                         }
-                        catch(IOException e1){}
-                        try
+                    }
+                    catch(IOException e1){}
+                    try
+                    {
+                        if(outStream != null)
                         {
-                            if(outStream != null)
-                            {
-                                outStream.close();
-                            }
+                            outStream.close();
                         }
-                        catch(IOException e1){}
-
-                        favs.add(hatName);
-                        break;
                     }
+                    catch(IOException e1){}
                 }
+
+                addCategoryMember(category, hatName);
             }
         }
     }
 
     public static void removeFromCategory(String hatName, String category)
     {
-        ArrayList<String> favs = categories.get(category);
-        if(favs != null)
+        synchronized(registryLock)
+        {
+            removeFromCategoryLocked(hatName, category);
+            publishRegistry();
+        }
+    }
+
+    public static void createCategory(String category)
+    {
+        synchronized(registryLock)
         {
-            for(int i = favs.size() - 1; i >= 0; i--)
+            setCategory(category, new ArrayList<String>());
+            publishRegistry();
+        }
+    }
+
+    private static void removeFromCategoryLocked(String hatName, String category)
+    {
+        HashSet<String> members = categoryMembers.get(category);
+        if(members != null && members.contains(hatName.toLowerCase()))
+        {
+            File dir = new File(hatsFolder, "/" + category);
+            File favFile = new File(dir, hatName + ".tc2");
+            if(favFile.exists())
             {
-                String fav = favs.get(i);
-                if(fav.equalsIgnoreCase(hatName))
+                File hatFile = new File(hatsFolder, hatName + ".tc2");
+                if(!hatFile.exists())
                 {
-                    File favFile = new File(hatsFolder, "/" + category +"/" + hatName + ".tc2");
-                    File hatFile = new File(hatsFolder, hatName + ".tc2");
-                    if(!hatFile.exists())
-                    {
-                        favFile.renameTo(hatFile);
-                    }
-                    else
-                    {
-                        favFile.delete();
-                    }
-                    favs.remove(i);
+                    favFile.renameTo(hatFile);
+                }
+                else
+                {
+                    favFile.delete();
+                }
+            }
+            ArrayList<String> manifest = readCategoryManifest(dir);
+            for(int i = manifest.size() - 1; i >= 0; i--)
+            {
+                if(manifest.get(i).equalsIgnoreCase(hatName))
+                {
+                    manifest.remove(i);
+                    writeCategoryManifest(dir, manifest);
                     break;
                 }
             }
+            removeCategoryMember(category, hatName);
         }
     }
 
@@ -367,6 +582,9 @@ public class HatHandler
                     return;
                 }
 
+                //We already have every byte in memory, hash it here rather than reading the file back.
+                String md5 = HatFileData.getChecksum(byteArray);
+
                 FileOutputStream fis = new FileOutputStream(file);
 
                 for(int i = 0; i < byteArray.size(); i++)
@@ -377,70 +595,76 @@ public class HatHandler
 
                 fis.close();
 
-                String md5 = MD5Checksum.getMD5Checksum(file);
+                synchronized(registryLock)
+                {
+                    receiveHatFile(hatName, file, md5, player, isServer);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+        }
+    }
 
-                boolean newHat = HatHandler.checksums.get(md5) == null;
+    private static void receiveHatFile(String hatName, File file, String md5, EntityPlayer player, boolean isServer)
+    {
+        boolean newHat = HatHandler.checksums.get(md5) == null;
 
-                if(readHatFromFile(file))
+        if(readHatFromFile(file, false, newHat ? HatFileData.read(file, md5) : new HatFileData(file, file.length(), file.lastModified(), md5, false, false, null, 0L)))
+        {
+            if(!newHat)
+            {
+                Hats.proxy.remap(file.getName().substring(0, file.getName().length() - 4).toLowerCase(), HatHandler.checksums.get(md5).getName().substring(0, HatHandler.checksums.get(md5).getName().length() - 4).toLowerCase());
+            }
+            //Publish before sending queued hats or repopulating the list, both read the registry.
+            publishRegistry();
+
+            if(isServer)
+            {
+                ArrayList<String> queuedLists = queuedHats.get(hatName.toLowerCase());
+                if(queuedLists != null)
                 {
-                    if(isServer)
+                    queuedHats.remove(hatName);
+                    for(String name : queuedLists)
                     {
-                        ArrayList<String> queuedLists = queuedHats.get(hatName.toLowerCase());
-                        if(queuedLists != null)
+                        EntityPlayer player1 = FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().func_152612_a(name);
+                        if(player1 != null)
                         {
-                            queuedHats.remove(hatName);
-                            for(String name : queuedLists)
-                            {
-                                EntityPlayer player1 = FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().func_152612_a(name);
-                                if(player1 != null)
-                                {
-                                    sendHat(hatName, player1);
-                                }
-                            }
+                            sendHat(hatName, player1);
                         }
-
-                        if(newHat)
-                        {
-                            Hats.console("Received " + file.getName() + " from " + player.getCommandSenderName());
-                        }
-                        else
-                        {
-                            Hats.proxy.remap(file.getName().substring(0, file.getName().length() - 4).toLowerCase(), HatHandler.checksums.get(md5).getName().substring(0, HatHandler.checksums.get(md5).getName().length() - 4).toLowerCase());
-                            Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! Duplicate hat file with different name. Remapping hat to original file.", true);
-                            if(!file.delete())
-                            {
-                                Hats.console("Failed to delete file! We're doomed!", true);
-                            }
-
-                            HatInfo info = Hats.proxy.playerWornHats.get(player.getCommandSenderName());
-                            Hats.proxy.playerWornHats.put(player.getCommandSenderName(), new HatInfo(HatHandler.checksums.get(md5).getName().substring(0, HatHandler.checksums.get(md5).getName().length() - 4).toLowerCase(), info.colourR, info.colourG, info.colourB, info.alpha));
-                        }
-
-                        Hats.proxy.sendPlayerListOfWornHats(player, false);
                     }
-                    else
-                    {
-                        Hats.proxy.tickHandlerClient.requestedHats.remove(hatName.toLowerCase());
+                }
 
-                        if(newHat)
-                        {
-                            Hats.console("Received " + file.getName() + " from server.");
-                            HatHandler.repopulateHatsList();
-                        }
-                        else
-                        {
-                            Hats.proxy.remap(file.getName().substring(0, file.getName().length() - 4).toLowerCase(), HatHandler.checksums.get(md5).getName().substring(0, HatHandler.checksums.get(md5).getName().length() - 4).toLowerCase());
-                            Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! Duplicate hat file with different name. Remapping hat to original file.", true);
-                            if(!file.delete())
-                            {
-                                Hats.console("Failed to delete file! We're doomed!", true);
-                            }
-                        }
+                if(newHat)
+                {
+                    Hats.console("Received " + file.getName() + " from " + player.getCommandSenderName());
+                }
+                else
+                {
+                    Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! Duplicate hat file with different name. Remapping hat to original file.", true);
+                    if(!file.delete())
+                    {
+                        Hats.console("Failed to delete file! We're doomed!", true);
                     }
+
+                    HatInfo info = Hats.proxy.playerWornHats.get(player.getCommandSenderName());
+                    Hats.proxy.playerWornHats.put(player.getCommandSenderName(), new HatInfo(HatHandler.checksums.get(md5).getName().substring(0, HatHandler.checksums.get(md5).getName().length() - 4).toLowerCase(), info.colourR, info.colourG, info.colourB, info.alpha));
+                }
+
+                Hats.proxy.sendPlayerListOfWornHats(player, false);
+            }
+            else
+            {
+                Hats.proxy.tickHandlerClient.requestedHats.remove(hatName.toLowerCase());
+
+                if(newHat)
+                {
+                    Hats.console("Received " + file.getName() + " from server.");
+                    HatHandler.repopulateHatsList();
                 }
                 else
                 {
-                    Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! SafeLoad is on, and the Model file contains files which are not XML or PNG files.", true);
+                    Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! Duplicate hat file with different name. Remapping hat to original file.", true);
                     if(!file.delete())
                     {
                         Hats.console("Failed to delete file! We're doomed!", true);
@@ -448,8 +672,13 @@ public class HatHandler
                 }
             }
         }
-        catch(IOException e)
+        else
         {
+            Hats.console("Deleting " + file.getName() + " from " + (isServer ? player.getCommandSenderName() : "server") + "! SafeLoad is on, and the Model file contains files which are not XML or PNG files.", true);
+            if(!file.delete())
+            {
+                Hats.console("Failed to delete file! We're doomed!", true);
+            }
         }
     }
 
@@ -460,19 +689,11 @@ public class HatHandler
             return;
         }
 
-        File file = null;
-
-        for(Entry<File, String> e : getHatNames().entrySet())
-        {
-            if(e.getValue().equalsIgnoreCase(hatName))
-            {
-                file = e.getKey();
-            }
-        }
+        File file = registry.getFile(hatName);
 
         if(file != null)
         {
-            int fileSize = (int)file.length();
+            int fileSize = (int)getHatSize(file);
 
             if(fileSize > 250000)
             {
@@ -489,7 +710,7 @@ public class HatHandler
 
             try
             {
-                FileInputStream fis = new FileInputStream(file);
+                InputStream fis = openHatStream(file);
 
                 String hatFullName = file.getName().substring(0, file.getName().length() - 4);
                 int packetsToSend = (int)Math.ceil((float)fileSize / 32000F);
@@ -537,26 +758,24 @@ public class HatHandler
         {
             return true;
         }
-        for(Entry<File, String> e : getHatNames().entrySet())
-        {
-            if(e.getValue().equalsIgnoreCase(name))
-            {
-                return true;
-            }
-        }
-        return false;
+        return registry.hasHat(name);
+    }
+
+    public static List<String> getHatsStartingWith(String prefix)
+    {
+        return registry.getHatsStartingWith(prefix);
     }
 
     public static String getHatStartingWith(String name)
     {
-        for(Entry<File, String> e : getHatNames().entrySet())
+        HatRegistry registry = HatHandler.registry;
+        if(registry.hasHat(name))
         {
-            if(e.getValue().toLowerCase().startsWith(name.toLowerCase()))
-            {
-                return e.getValue();
-            }
+            //Exact names and remapped aliases.
+            return name.toLowerCase();
         }
-        return name;
+        String hatName = registry.getFirstHatStartingWith(name);
+        return hatName != null ? hatName : name;
     }
 
     public static ArrayList<String> getAllHats()
@@ -580,7 +799,7 @@ public class HatHandler
         while(ite.hasNext())
         {
             Entry<File, String> e = ite.next();
-            if(e.getValue().startsWith("(C)".toLowerCase()) && rand.nextFloat() > ((float)Hats.config.getInt("useRandomContributorHats") / 100F))
+            if(e.getValue().startsWith("(C)".toLowerCase()) && getRand().nextFloat() > ((float)Hats.config.getInt("useRandomContributorHats") / 100F))
             {
                 continue;
             }
@@ -589,50 +808,94 @@ public class HatHandler
         return hatList;
     }
 
-    public static EnumChatFormatting getHatRarityColour(String hat)
+    /**
+     * The odds getRandomHatFromList(getHatsWithWeightedContributors(), withRarity) gives on average, but drawn from a table built
+     * once per registry, seed and contributor setting instead of rolling a new list for every spawn.
+     */
+    public static HatInfo getRandomHatWithWeightedContributors(boolean withRarity)
     {
-        if(Hats.config.getSessionInt("hatGenerationSeed") == 0)
-        {
-            return EnumChatFormatting.WHITE;
-        }
-        float rarity = HatHandler.getHatRarity(hat);
-        if(rarity < 1F/7F)
-        {
-            return EnumChatFormatting.AQUA;
-        }
-        else if(rarity < 2F/7F)
-        {
-            return EnumChatFormatting.GOLD;
-        }
-        else if(rarity < 3F/7F)
-        {
-            return EnumChatFormatting.YELLOW;
-        }
-        else if(rarity < 4F/7F)
-        {
-            return EnumChatFormatting.LIGHT_PURPLE;
-        }
-        else if(rarity < 5F/7F)
-        {
-            return EnumChatFormatting.BLUE;
-        }
-        else if(rarity < 6F/7F)
+        return getRandomHatWithWeightedContributors(withRarity, getRand());
+    }
+
+    public static HatInfo getRandomHatWithWeightedContributors(boolean withRarity, Random random)
+    {
+        String hatName = getWeightedSampler(withRarity).sample(random);
+        return hatName != null ? new HatInfo(hatName, 255, 255, 255, 255) : new HatInfo();
+    }
+
+    /**
+     * Every hat, with contributor hats weighted down by useRandomContributorHats and, if asked for, each weighted by rarity.
+     * Kept until the seed, the registry or the contributor chance changes. Lock free like getRaritySampler, two threads racing only build it twice.
+     */
+    public static HatSampler getWeightedSampler(boolean withRarity)
+    {
+        HatRarityTable table = getRarityTable();
+        int contributorChance = Hats.config.getInt("useRandomContributorHats");
+        WeightedSamplerCache cache = withRarity ? weightedRaritySamplerCache : weightedSamplerCache;
+        if(cache == null || cache.table != table || cache.contributorChance != contributorChance)
         {
-            return EnumChatFormatting.DARK_GREEN;
+            double contributorWeight = Math.min(Math.max((double)contributorChance / 100D, 0D), 1D);
+            List<String> all = registry.getAllHatNames();
+            ArrayList<String> hats = new ArrayList<String>(all.size());
+            ArrayList<Double> baseWeights = new ArrayList<Double>(all.size());
+            for(String fileName : all)
+            {
+                //Lower case like the registry's hat names, the client keys its models by those.
+                String hatName = fileName.toLowerCase();
+                double weight = hatName.startsWith("(c)") ? contributorWeight : 1D;
+                if(weight > 0D)
+                {
+                    hats.add(hatName);
+                    baseWeights.add(weight);
+                }
+            }
+            double[] base = new double[hats.size()];
+            float[] rarities = new float[hats.size()];
+            for(int j = 0; j < base.length; j++)
+            {
+                base[j] = baseWeights.get(j);
+                rarities[j] = table.getRarity(hats.get(j));
+            }
+            cache = new WeightedSamplerCache(table, contributorChance, new HatSampler(hats.toArray(new String[hats.size()]), withRarity ? HatSampler.getRarityWeights(rarities, base) : base));
+            if(withRarity)
+            {
+                weightedRaritySamplerCache = cache;
+            }
+            else
+            {
+                weightedSamplerCache = cache;
+            }
         }
-        else if(rarity < 7F/7F)
+        return cache.sampler;
+    }
+
+    public static EnumChatFormatting getHatRarityColour(String hat)
+    {
+        if(Hats.config.getSessionInt("hatGenerationSeed") == 0)
         {
             return EnumChatFormatting.WHITE;
         }
-        return EnumChatFormatting.WHITE;
+        return getRarityTable().getColour(hat);
     }
 
     public static float getHatRarity(String hatName)
     {
-        hatGen.setSeed(Hats.config.getSessionInt("hatGenerationSeed"));
-        int hash = Math.abs(hatName.toLowerCase().hashCode());
-        int rand = hatGen.nextInt(hash);
-        return (float)rand / (float)hash;
+        return getRarityTable().getRarity(hatName);
+    }
+
+    /**
+     * The rarity table for the current session seed and registry, rebuilt when either changes.
+     */
+    public static HatRarityTable getRarityTable()
+    {
+        int seed = Hats.config.getSessionInt("hatGenerationSeed");
+        HatRegistry reg = registry;
+        HatRarityTable table = rarityTable;
+        if(table == null || table.seed != seed || table.generation != reg.generation)
+        {
+            table = rarityTable = new HatRarityTable(seed, reg);
+        }
+        return table;
     }
 
     public static HatInfo getRandomHatFromList(ArrayList<String> list, boolean withRarity)
@@ -648,63 +911,129 @@ public class HatHandler
 
         if(withRarity)
         {
-            HatInfo hat = null;
-
-            final int triesPerPass = 500;
-            float randAmp = 1.0F;
-
-            int tries = 0;
+            HatSampler sampler = getRaritySampler(list);
+            return new HatInfo(sampler != null ? sampler.sample(getRand()) : getRandomHatByRarity(list, getRarityTable(), getRand()), 255, 255, 255, 255);
+        }
+        else
+        {
+            return new HatInfo(list.get(getRand().nextInt(list.size())), 255, 255, 255, 255);
+        }
+    }
 
-            while(hat == null)
+    /**
+     * Alias table over the list weighted by rarity, or null if it isn't worth building one. A table costs O(n) rarity passes to build,
+     * so it's only built for a list that's asked for twice running (kept by identity, so don't change a list once it's been drawn from),
+     * and kept until the seed or the registry changes. Lock free, two threads racing only build the same table twice.
+     */
+    public static HatSampler getRaritySampler(List<String> list)
+    {
+        HatRarityTable table = getRarityTable();
+        RaritySamplerCache cache = raritySamplerCache;
+        if(cache != null && cache.list == list && cache.size == list.size() && cache.table == table)
+        {
+            if(cache.sampler == null)
             {
-                String hatName = list.get(rand.nextInt(list.size()));
-                float rarity = getHatRarity(hatName);
-                if(rand.nextFloat() < rarity * randAmp)
+                String[] hats = list.toArray(new String[list.size()]);
+                float[] rarities = new float[hats.length];
+                for(int i = 0; i < hats.length; i++)
                 {
-                    hat = new HatInfo(hatName, 255, 255, 255, 255);
+                    rarities[i] = table.getRarity(hats[i]);
                 }
+                cache = raritySamplerCache = new RaritySamplerCache(list, table, new HatSampler(hats, HatSampler.getRarityWeights(rarities)));
+            }
+            return cache.sampler;
+        }
+        raritySamplerCache = new RaritySamplerCache(list, table, null);
+        return null;
+    }
 
-                tries++;
-                if(tries >= triesPerPass)
+    /**
+     * The old rejection loop, for lists only drawn from once: pick one at random, accept it with chance rarity * amp,
+     * raising amp after every TRIES_PER_PASS misses.
+     */
+    private static String getRandomHatByRarity(List<String> list, HatRarityTable table, Random random)
+    {
+        float amp = 1.0F;
+        for(int pass = 0; pass < 1000; pass++)
+        {
+            for(int tries = 0; tries < HatSampler.TRIES_PER_PASS; tries++)
+            {
+                String hatName = list.get(random.nextInt(list.size()));
+                if(random.nextFloat() < table.getRarity(hatName) * amp)
                 {
-                    tries = 0;
-                    randAmp += 0.05F;
+                    return hatName;
                 }
             }
-
-            return hat;
-        }
-        else
-        {
-            return new HatInfo(list.get(rand.nextInt(list.size())), 255, 255, 255, 255);
+            amp += HatSampler.AMP_PER_PASS;
         }
+        //Every hat has rarity 0 or near enough, the old loop never finished here.
+        return list.get(random.nextInt(list.size()));
     }
 
-    public static ArrayList<String> getAllHatNamesAsList()
+    /**
+     * Sorted once per registry and shared, so it can't be modified. Use getRandomHatNotIn to pick a hat to hand out.
+     */
+    public static List<String> getAllHatNamesAsList()
     {
-        ArrayList<String> hatNameList = new ArrayList<String>();
+        return registry.getAllHatNames();
+    }
 
-        Iterator<Entry<File, String>> ite = HatHandler.getHatNames().entrySet().iterator();
-        while(ite.hasNext())
+    /**
+     * Picks a hat the player doesn't have yet, null if they have them all. Drawn in O(log n) from a Fenwick tree the player's HatCounts
+     * keeps over the hats they don't own. With rarity on, each hat's chance is proportional to its rarity, which is what the old
+     * 500 tries per pass loop gave unless it got past its first pass, a (1 - average rarity)^500 chance.
+     */
+    public static String getRandomHatNotIn(HatCounts owned, boolean withRarity)
+    {
+        HatRarityTable table = getRarityTable();
+        Random random = getRand();
+        int id = -1;
+        if(withRarity)
         {
-            Entry<File, String> e = ite.next();
-            String name = e.getKey().getName().substring(0, e.getKey().getName().length() - 4);
-            hatNameList.add(name);
+            id = owned.getUnownedSampler(table, true).sample(random, owned);
         }
-        Collections.sort(hatNameList);
-
-        return hatNameList;
+        if(id < 0)
+        {
+            //Also when every hat left has rarity 0, which the old loop could never accept.
+            id = owned.getUnownedSampler(table, false).sample(random, owned);
+        }
+        return id >= 0 ? getNameForHat(HatIds.getName(id)) : null;
     }
 
-    public static String[] getAllHatsAsArray()
+    /**
+     * This thread's own random stream. The loader, server tick, netty and render threads each get their own so they never contend.
+     */
+    public static Random getRand()
     {
-        ArrayList<String> hatNameList = getAllHatNamesAsList();
+        return ThreadLocalRandom.current();
+    }
 
-        String[] hatNameArray = new String[hatNameList.size()];
+    /**
+     * A random stream that only depends on the world seed and the entity's UUID, so the same mob always rolls the same hat.
+     * Reused per thread, take what's needed from it before asking for another entity's.
+     */
+    public static Random getEntityRand(Entity entity)
+    {
+        UUID uuid = entity.getUniqueID();
+        Random random = entityRand.get();
+        random.setSeed(mix(mix(entity.worldObj.getSeed() ^ uuid.getMostSignificantBits()) ^ uuid.getLeastSignificantBits()));
+        return random;
+    }
 
-        hatNameList.toArray(hatNameArray);
+    /**
+     * SplitMix64's finaliser, so seeds that only differ in a few bits still give unrelated streams.
+     */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
 
-        return hatNameArray;
+    public static String[] getAllHatsAsArray()
+    {
+        //Sorted once per registry by the prefix index.
+        return registry.getSortedHatNames().clone();
     }
 
     public static void unlockHat(EntityPlayer player, String hat)
@@ -713,58 +1042,23 @@ public class HatHandler
         {
             return;
         }
-        TreeMap<String, Integer> hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(player.getCommandSenderName());
-        Iterator<Entry<File, String>> ite = HatHandler.getHatNames().entrySet().iterator();
-        while(ite.hasNext())
+        HatCounts hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(player.getCommandSenderName());
+        String name = registry.getDisplayName(hat);
+        if(name != null)
         {
-            Entry<File, String> e = ite.next();
-            String name = e.getKey().getName().substring(0, e.getKey().getName().length() - 4);
-            if(name.equalsIgnoreCase(hat))
-            {
-                Integer hatCount = hats.get(name);
-                if(hatCount == null)
-                {
-                    hatCount = 1;
-                    hats.put(name, hatCount);
-                }
-                else
-                {
-                    hats.put(name, hatCount + 1);
-                }
-
-                StringBuilder sb = new StringBuilder();
-                for(Map.Entry<String, Integer> e1 : hats.entrySet())
-                {
-                    String hatName = getNameForHat(e1.getKey());
-                    sb.append(hatName);
-                    if(e1.getValue() > 1)
-                    {
-                        sb.append(">" + e1.getValue());
-                    }
-                    sb.append(":");
-                }
+            int id = HatIds.getId(name);
+            hats.add(id, 1);
 
-                NBTTagCompound persistentTag = player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
-                persistentTag.setString("Hats_unlocked", sb.toString().length() > 0 ? sb.toString().substring(0, sb.toString().length() - 1) : sb.toString());
-                player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+            Hats.proxy.tickHandlerServer.markHatChanged(player.getCommandSenderName(), id);
 
-                PacketHandler.sendToPlayer(Hats.channels, new PacketString(0, name), player);
-
-                break;
-            }
+            PacketHandler.sendToPlayer(Hats.channels, new PacketString(0, name), player);
         }
     }
 
     public static String getNameForHat(String hat)
     {
-        for(Entry<File, String> e2 : getHatNames().entrySet())
-        {
-            if(e2.getValue().equalsIgnoreCase(hat))
-            {
-                return e2.getKey().getName().substring(0, e2.getKey().getName().length() - 4);
-            }
-        }
-        return hat;
+        String name = registry.getDisplayName(hat);
+        return name != null ? name : hat;
     }
 
     @SideOnly(Side.CLIENT)
@@ -894,6 +1188,66 @@ public class HatHandler
         return bool;
     }
 
+    /**
+     * Whether an active spawner could have put this mob here. Only spawners in the chunks within reach of the mob are looked at,
+     * through the chunk's own tile entity map, instead of every loaded tile entity in the world.
+     */
+    public static boolean isFromSpawner(EntityLivingBase living)
+    {
+        return isFromSpawner(living, getActiveSpawners(living.worldObj, MathHelper.floor_double(living.posX) >> 4, MathHelper.floor_double(living.posZ) >> 4));
+    }
+
+    public static boolean isFromSpawner(EntityLivingBase living, List<MobSpawnerBaseLogic> spawners)
+    {
+        for(MobSpawnerBaseLogic logic : spawners)
+        {
+            //The class registered under the spawner's mob name, instead of building a throwaway entity to find it.
+            if(EntityList.stringToClassMapping.get(logic.getEntityNameToSpawn()) != living.getClass())
+            {
+                continue;
+            }
+            if(living.boundingBox.intersectsWith(AxisAlignedBB.getBoundingBox((double)logic.getSpawnerX(), (double)logic.getSpawnerY(), (double)logic.getSpawnerZ(), (double)(logic.getSpawnerX() + 1), (double)(logic.getSpawnerY() + 1), (double)(logic.getSpawnerZ() + 1)).expand((double)(4 * 2), 4.0D, (double)(4 * 2))))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every active spawner close enough to reach a mob anywhere in this chunk, so a batch of mobs from one chunk shares a single scan.
+     */
+    public static ArrayList<MobSpawnerBaseLogic> getActiveSpawners(World world, int chunkX, int chunkZ)
+    {
+        ArrayList<MobSpawnerBaseLogic> spawners = new ArrayList<MobSpawnerBaseLogic>();
+        int reach = ((int)SPAWNER_REACH >> 4) + 1;
+        for(int cx = chunkX - reach; cx <= chunkX + reach; cx++)
+        {
+            for(int cz = chunkZ - reach; cz <= chunkZ + reach; cz++)
+            {
+                if(!world.getChunkProvider().chunkExists(cx, cz))
+                {
+                    continue;
+                }
+                Chunk chunk = world.getChunkFromChunkCoords(cx, cz);
+                for(Object obj : chunk.chunkTileEntityMap.values())
+                {
+                    TileEntity te = (TileEntity)obj;
+                    if(te.isInvalid() || !isMobSpawner(te.getClass(), te.getClass()))
+                    {
+                        continue;
+                    }
+                    MobSpawnerBaseLogic logic = getMobSpawnerLogic(te.getClass(), te);
+                    if(logic != null && logic.isActivated())
+                    {
+                        spawners.add(logic);
+                    }
+                }
+            }
+        }
+        return spawners;
+    }
+
     public static MobSpawnerBaseLogic getMobSpawnerLogic(Class<? extends TileEntity> clz, TileEntity instance)
     {
         try
@@ -915,38 +1269,185 @@ public class HatHandler
         return null;
     }
 
-    public static HashMap<File, String> getHatNames()
+    /**
+     * The published hat names. Safe to read from any thread, it's replaced rather than modified.
+     */
+    public static Map<File, String> getHatNames()
+    {
+        return registry.hatNames;
+    }
+
+    public static HatRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /**
+     * Publishes the working maps as the new registry. Callers must hold registryLock.
+     */
+    public static void publishRegistry()
+    {
+        registry = new HatRegistry(registry.generation + 1, hatNames, hatFiles, checksums, categories);
+        HatIds.sync(registry);
+        Hats.proxy.onRegistryPublished(registry);
+    }
+
+    /**
+     * The working hat names, read only. Change them through putHatName and removeHatName so the name index stays in step.
+     */
+    public static Map<File, String> getActualHatNamesMap()
+    {
+        return Collections.unmodifiableMap(hatNames);
+    }
+
+    /**
+     * The file backing this hat in the working maps. Callers must hold registryLock, everyone else should use getRegistry().
+     */
+    public static File getWorkingHatFile(String hatName)
+    {
+        return hatFiles.get(hatName.toLowerCase());
+    }
+
+    public static void putHatName(File file, String hatName)
     {
-        if(reloadingHats)
+        hatName = hatName.toLowerCase();
+        String old = hatNames.put(file, hatName);
+        if(old != null && !old.equals(hatName))
+        {
+            removeFromNameIndex(old, file);
+        }
+        File existing = hatFiles.get(hatName);
+        //Prefer the copy in the main folder over ones in category folders, that's the one sent and unlocked.
+        if(existing == null || !existing.getParentFile().equals(hatsFolder) && file.getParentFile().equals(hatsFolder))
         {
-            return new HashMap<File, String>();
+            hatFiles.put(hatName, file);
         }
-        return hatNames;
     }
 
-    public static HashMap<File, String> getActualHatNamesMap()
+    /**
+     * Makes a duplicate hat's name resolve to the file of the hat it duplicates, the original keeps its own name.
+     */
+    public static void putHatAlias(String alias, File file)
     {
-        return hatNames;
+        hatFiles.put(alias.toLowerCase(), file);
     }
 
-    public static boolean reloadingHats;
+    public static void removeHatName(File file)
+    {
+        String old = hatNames.remove(file);
+        if(old != null)
+        {
+            removeFromNameIndex(old, file);
+        }
+        //Drop any aliases pointing at it too.
+        hatFiles.values().removeAll(Collections.singleton(file));
+    }
+
+    public static void clearHatNames()
+    {
+        hatNames.clear();
+        hatFiles.clear();
+    }
+
+    private static void removeFromNameIndex(String hatName, File file)
+    {
+        if(file.equals(hatFiles.get(hatName)))
+        {
+            hatFiles.remove(hatName);
+            //Only happens on unload, fall back to any other copy of the hat still loaded.
+            for(Entry<File, String> e : hatNames.entrySet())
+            {
+                if(e.getValue().equals(hatName))
+                {
+                    putHatName(e.getKey(), hatName);
+                    break;
+                }
+            }
+        }
+    }
+
+    public static volatile boolean reloadingHats;
+
+    /**
+     * Held by anything changing the working maps below. Readers use getRegistry() instead and never lock.
+     */
+    public static final Object registryLock = new Object();
+
+    private static volatile HatRegistry registry = HatRegistry.EMPTY;
 
     public static File hatsFolder;
 
+    public static HatLibraryIndex libraryIndex;
+
+    public static HatBundle bundle;
+
     public static HashMap<String, ArrayList<String>> queuedHats = new HashMap<String, ArrayList<String>>();
 
     public static HashMap<String, ArrayList<byte[]>> hatParts = new HashMap<String, ArrayList<byte[]>>();
 
     private static HashMap<File, String> hatNames = new HashMap<File, String>();
 
+    private static HashMap<String, File> hatFiles = new HashMap<String, File>();
+
     public static HashMap<String, File> checksums = new HashMap<String, File>();
 
+    public static final String CATEGORY_MANIFEST = "category.txt";
+
     public static HashMap<String, ArrayList<String>> categories = new HashMap<String, ArrayList<String>>();
 
-    public static Random rand = new Random();
+    public static HashMap<String, HashSet<String>> categoryMembers = new HashMap<String, HashSet<String>>();
+
+    private static final ThreadLocal<Random> entityRand = new ThreadLocal<Random>()
+    {
+        @Override
+        protected Random initialValue()
+        {
+            return new Random();
+        }
+    };
+
+    private static volatile HatRarityTable rarityTable;
+
+    private static volatile RaritySamplerCache raritySamplerCache;
 
-    public static Random hatGen = new Random();
+    private static volatile WeightedSamplerCache weightedSamplerCache;
+    private static volatile WeightedSamplerCache weightedRaritySamplerCache;
+
+    /**
+     * How far from a spawner the spawn check looks: the 8 block box around it plus room for the mob's own width.
+     */
+    private static final double SPAWNER_REACH = 4 * 2 + 3;
 
     private static HashMap<Class<? extends TileEntity>, Boolean> mobSpawners = new HashMap<Class<? extends TileEntity>, Boolean>();
     private static HashMap<Class<? extends TileEntity>, Field> mobSpawnerLogic = new HashMap<Class<? extends TileEntity>, Field>();
+
+    private static class RaritySamplerCache
+    {
+        public final List<String> list;
+        public final int size;
+        public final HatRarityTable table;
+        public final HatSampler sampler;
+
+        public RaritySamplerCache(List<String> list, HatRarityTable table, HatSampler sampler)
+        {
+            this.list = list;
+            this.size = list.size();
+            this.table = table;
+            this.sampler = sampler;
+        }
+    }
+
+    private static class WeightedSamplerCache
+    {
+        public final HatRarityTable table;
+        public final int contributorChance;
+        public final HatSampler sampler;
+
+        public WeightedSamplerCache(HatRarityTable table, int contributorChance, HatSampler sampler)
+        {
+            this.table = table;
+            this.contributorChance = contributorChance;
+            this.sampler = sampler;
+        }
+    }
 }
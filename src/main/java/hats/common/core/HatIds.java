@@ -0,0 +1,133 @@
+package hats.common.core;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Compact int IDs for hat names, so server side state (mob hats, unlocked hats, trade offers) holds ints instead of a copy of the name.
+ * IDs are handed out densely in sorted order as each library generation is published and are never reused, so state built
+ * against an older generation stays valid after a reload. Names only come back out at the packet and NBT boundaries.
+ */
+public class HatIds
+{
+    private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    private static volatile String[] names = new String[256];
+
+    private static volatile int count;
+
+    private static int syncedGeneration = -1;
+
+    /**
+     * The ID for this hat, assigning a new one if it's never been seen before. -1 for no hat.
+     */
+    public static int getId(String hatName)
+    {
+        if(hatName == null || hatName.trim().isEmpty())
+        {
+            return -1;
+        }
+        synchronized(ids)
+        {
+            Integer id = ids.get(hatName.toLowerCase());
+            if(id == null)
+            {
+                id = assign(hatName);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * The ID for this hat, or -1 if it's never been given one.
+     */
+    public static int findId(String hatName)
+    {
+        if(hatName == null)
+        {
+            return -1;
+        }
+        synchronized(ids)
+        {
+            Integer id = ids.get(hatName.toLowerCase());
+            return id != null ? id : -1;
+        }
+    }
+
+    /**
+     * The hat's name as the library spells it, or as it was first seen if the library doesn't have it. Null for an unknown ID.
+     */
+    public static String getName(int id)
+    {
+        int n = count;
+        String[] names = HatIds.names;
+        return id >= 0 && id < n ? names[id] : null;
+    }
+
+    public static int size()
+    {
+        return count;
+    }
+
+    /**
+     * Gives every hat in the registry an ID and picks up any change in how a known hat is spelt. Works from the registry's unsorted names
+     * so it doesn't build its sorted index, only the hats new to this generation are sorted, so a fresh library gets a dense 0..n-1 range in order.
+     */
+    public static void sync(HatRegistry registry)
+    {
+        synchronized(ids)
+        {
+            if(registry.generation == syncedGeneration)
+            {
+                return;
+            }
+            syncedGeneration = registry.generation;
+            TreeMap<String, String> added = null;
+            for(String value : registry.hatNames.values())
+            {
+                String key = value.toLowerCase();
+                String hatName = registry.getDisplayName(key);
+                if(hatName == null)
+                {
+                    hatName = key;
+                }
+                Integer id = ids.get(key);
+                if(id != null)
+                {
+                    names[id] = hatName;
+                }
+                else
+                {
+                    if(added == null)
+                    {
+                        added = new TreeMap<String, String>();
+                    }
+                    added.put(key, hatName);
+                }
+            }
+            if(added != null)
+            {
+                for(String hatName : added.values())
+                {
+                    assign(hatName);
+                }
+            }
+        }
+    }
+
+    private static int assign(String hatName)
+    {
+        int id = count;
+        if(id == names.length)
+        {
+            String[] newNames = new String[id * 2];
+            System.arraycopy(names, 0, newNames, 0, id);
+            names = newNames;
+        }
+        names[id] = hatName;
+        ids.put(hatName.toLowerCase(), id);
+        //Published last so readers never see an ID without its name.
+        count = id + 1;
+        return id;
+    }
+}
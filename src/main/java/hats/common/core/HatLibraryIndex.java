@@ -0,0 +1,192 @@
+package hats.common.core;
+
+import com.google.gson.Gson;
+import hats.common.Hats;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Persistent record of every hat file the loader has already hashed and parsed.
+ * Files whose size and last modified time still match are trusted from here instead of being read again.
+ */
+public class HatLibraryIndex
+{
+    public static final int VERSION = 2;
+
+    public final File hatsFolder;
+
+    public final File indexFile;
+
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Checksum of each .tcn we've converted to the checksum of the .tc2 it produced.
+     */
+    private HashMap<String, String> converted = new HashMap<String, String>();
+
+    private boolean dirty;
+
+    public HatLibraryIndex(File hatsFolder)
+    {
+        this.hatsFolder = hatsFolder;
+        this.indexFile = new File(hatsFolder.getParentFile(), "hatsIndex.json");
+    }
+
+    public void load()
+    {
+        entries.clear();
+        converted.clear();
+        dirty = false;
+        File temp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        if(!indexFile.exists() && temp.exists())
+        {
+            //Stopped between removing the old index and renaming the new one, the new one was already complete.
+            temp.renameTo(indexFile);
+        }
+        if(!indexFile.exists())
+        {
+            return;
+        }
+        try
+        {
+            Reader reader = new InputStreamReader(new FileInputStream(indexFile), "UTF-8");
+            IndexFile index = (new Gson()).fromJson(reader, IndexFile.class);
+            reader.close();
+            if(index != null && index.version == VERSION && index.entries != null)
+            {
+                for(Entry entry : index.entries)
+                {
+                    entries.put(entry.path, entry);
+                }
+                if(index.converted != null)
+                {
+                    converted.putAll(index.converted);
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            Hats.console("Failed to read the hats index, hats will be read from disk.", true);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the cached data for this file if it hasn't changed since it was indexed, otherwise null.
+     */
+    public HatFileData get(File file)
+    {
+        Entry entry = entries.get(getPath(file));
+        if(entry != null && entry.size == file.length() && entry.lastModified == file.lastModified())
+        {
+            return new HatFileData(file, entry.size, entry.lastModified, entry.checksum, entry.readable, entry.tampered, null, 0L);
+        }
+        return null;
+    }
+
+    public synchronized String getConverted(String tcnChecksum)
+    {
+        return converted.get(tcnChecksum);
+    }
+
+    public synchronized void putConverted(String tcnChecksum, String tc2Checksum)
+    {
+        converted.put(tcnChecksum, tc2Checksum);
+        dirty = true;
+    }
+
+    public void update(Collection<HatFileData> files)
+    {
+        HashMap<String, Entry> updated = new HashMap<String, Entry>();
+        for(HatFileData data : files)
+        {
+            String path = getPath(data.file);
+            Entry entry = entries.get(path);
+            if(entry == null || entry.size != data.size || entry.lastModified != data.lastModified || !entry.checksum.equals(data.checksum))
+            {
+                entry = new Entry();
+                entry.path = path;
+                entry.size = data.size;
+                entry.lastModified = data.lastModified;
+                entry.checksum = data.checksum;
+                entry.readable = data.readable;
+                entry.tampered = data.tampered;
+                dirty = true;
+            }
+            updated.put(path, entry);
+        }
+        if(updated.size() != entries.size())
+        {
+            dirty = true;
+        }
+        entries = updated;
+    }
+
+    public void save()
+    {
+        if(!dirty)
+        {
+            return;
+        }
+        try
+        {
+            IndexFile index = new IndexFile();
+            index.version = VERSION;
+            index.entries = new ArrayList<Entry>(entries.values());
+            index.converted = new HashMap<String, String>(converted);
+
+            //Written next to the index and swapped in, so a crash mid write leaves the old index rather than half of a new one.
+            File temp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try
+            {
+                (new Gson()).toJson(index, writer);
+            }
+            finally
+            {
+                writer.close();
+            }
+            if(indexFile.exists() && !indexFile.delete() || !temp.renameTo(indexFile))
+            {
+                temp.delete();
+                Hats.console("Failed to write the hats index!", true);
+                return;
+            }
+            dirty = false;
+        }
+        catch(IOException e)
+        {
+            Hats.console("Failed to write the hats index!", true);
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private String getPath(File file)
+    {
+        return hatsFolder.toURI().relativize(file.toURI()).getPath();
+    }
+
+    private static class IndexFile
+    {
+        public int version;
+        public ArrayList<Entry> entries;
+        public HashMap<String, String> converted;
+    }
+
+    public static class Entry
+    {
+        public String path;
+        public long size;
+        public long lastModified;
+        public String checksum;
+        public boolean readable;
+        public boolean tampered;
+    }
+}
@@ -0,0 +1,174 @@
+package hats.common.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Wall clock and CPU time, bytes and file counts for each phase of a hats folder load.
+ * The last few loads are kept so a slow reload can be compared against the ones before it with /hats stats load.
+ */
+public class HatLoadStats
+{
+    public static final int HISTORY = 5;
+
+    private static final LinkedList<HatLoadStats> history = new LinkedList<HatLoadStats>();
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The load currently running, so work done outside ThreadHatsReader (eg. eager model building) can be added to it.
+     */
+    public static volatile HatLoadStats current;
+
+    private static int loadCount;
+
+    public final int id;
+
+    public final boolean reload;
+
+    public final long startTime = System.currentTimeMillis();
+
+    public final LinkedHashMap<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    public int hatCount;
+
+    public long totalNanos;
+
+    private final long startNanos = System.nanoTime();
+
+    private Phase running;
+
+    private long runningWall;
+    private long runningCpu;
+
+    public HatLoadStats(boolean reload)
+    {
+        synchronized(history)
+        {
+            this.id = ++loadCount;
+        }
+        this.reload = reload;
+    }
+
+    public void begin(String phase)
+    {
+        end();
+        running = getPhase(phase);
+        runningWall = System.nanoTime();
+        runningCpu = getThreadCpuTime();
+    }
+
+    /**
+     * Ends the running phase, adding the wall and CPU time spent in it on this thread.
+     */
+    public void end()
+    {
+        if(running != null)
+        {
+            running.wallNanos += System.nanoTime() - runningWall;
+            running.cpuNanos += getThreadCpuTime() - runningCpu;
+            running = null;
+        }
+    }
+
+    public synchronized Phase getPhase(String phase)
+    {
+        Phase p = phases.get(phase);
+        if(p == null)
+        {
+            p = new Phase(phase);
+            phases.put(phase, p);
+        }
+        return p;
+    }
+
+    public synchronized void add(String phase, long wallNanos, long cpuNanos, long bytes, int files)
+    {
+        Phase p = getPhase(phase);
+        p.wallNanos += wallNanos;
+        p.cpuNanos += cpuNanos;
+        p.bytes += bytes;
+        p.files += files;
+    }
+
+    public void finish(int hatCount)
+    {
+        end();
+        this.hatCount = hatCount;
+        this.totalNanos = System.nanoTime() - startNanos;
+        current = null;
+        synchronized(history)
+        {
+            history.addFirst(this);
+            while(history.size() > HISTORY)
+            {
+                history.removeLast();
+            }
+        }
+    }
+
+    /**
+     * One line summary for the console, eg. "812ms (download 0ms, favourites 2ms, read 640ms/2300ms cpu, ...)".
+     */
+    public synchronized String getSummary()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(totalNanos / 1000000L).append("ms (");
+        boolean first = true;
+        for(Phase phase : phases.values())
+        {
+            if(!first)
+            {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(phase.name).append(" ").append(phase.wallNanos / 1000000L).append("ms");
+            if(phase.cpuNanos > phase.wallNanos + 1000000L)
+            {
+                sb.append("/").append(phase.cpuNanos / 1000000L).append("ms cpu");
+            }
+        }
+        return sb.append(")").toString();
+    }
+
+    public static List<HatLoadStats> getHistory()
+    {
+        synchronized(history)
+        {
+            return new ArrayList<HatLoadStats>(history);
+        }
+    }
+
+    public static long getThreadCpuTime()
+    {
+        try
+        {
+            return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0L;
+        }
+        catch(UnsupportedOperationException e)
+        {
+            return 0L;
+        }
+    }
+
+    public static class Phase
+    {
+        public final String name;
+
+        public long wallNanos;
+        public long cpuNanos;
+        public long bytes;
+        public int files;
+
+        public String note;
+
+        public Phase(String name)
+        {
+            this.name = name;
+        }
+    }
+}
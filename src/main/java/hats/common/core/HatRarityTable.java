@@ -0,0 +1,130 @@
+package hats.common.core;
+
+import net.minecraft.util.EnumChatFormatting;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Every hat's rarity and colour tier for one session seed and registry generation, indexed by HatIds ID.
+ * Rarity only depends on the seed and the hat's name, so it's worked out once here instead of reseeding a Random on every lookup.
+ */
+public final class HatRarityTable
+{
+    public static final EnumChatFormatting[] TIER_COLOURS = new EnumChatFormatting[] { EnumChatFormatting.AQUA, EnumChatFormatting.GOLD, EnumChatFormatting.YELLOW, EnumChatFormatting.LIGHT_PURPLE, EnumChatFormatting.BLUE, EnumChatFormatting.DARK_GREEN, EnumChatFormatting.WHITE };
+
+    public final int seed;
+
+    public final int generation;
+
+    private final float[] rarities;
+
+    private final byte[] tiers;
+
+    private volatile double[] evenWeights;
+    private volatile double[] rarityWeights;
+
+    public HatRarityTable(int seed, HatRegistry registry)
+    {
+        this.seed = seed;
+        this.generation = registry.generation;
+
+        String[] names = registry.getSortedHatNames();
+        int[] ids = new int[names.length];
+        int max = -1;
+        for(int i = 0; i < names.length; i++)
+        {
+            ids[i] = HatIds.getId(names[i]);
+            max = Math.max(max, ids[i]);
+        }
+
+        rarities = new float[max + 1];
+        tiers = new byte[max + 1];
+        Arrays.fill(rarities, Float.NaN);
+
+        Random gen = new Random();
+        for(int i = 0; i < names.length; i++)
+        {
+            float rarity = getRarity(gen, seed, names[i]);
+            rarities[ids[i]] = rarity;
+            tiers[ids[i]] = (byte)getTier(rarity);
+        }
+    }
+
+    public float getRarity(String hatName)
+    {
+        int id = HatIds.findId(hatName);
+        return id >= 0 && id < rarities.length && !Float.isNaN(rarities[id]) ? rarities[id] : getRarity(new Random(), seed, hatName);
+    }
+
+    /**
+     * Rarity by HatIds ID, 0 for a hat that isn't in this table.
+     */
+    public float getRarity(int id)
+    {
+        return id >= 0 && id < rarities.length && !Float.isNaN(rarities[id]) ? rarities[id] : 0F;
+    }
+
+    /**
+     * Each hat's weight in an UnownedHatSampler by HatIds ID, its rarity capped at 1 or 1 for all, 0 for an ID that isn't in the library.
+     * Shared by every player's sampler for this table, so don't modify it.
+     */
+    public double[] getSamplerWeights(boolean withRarity)
+    {
+        double[] weights = withRarity ? rarityWeights : evenWeights;
+        if(weights == null)
+        {
+            weights = new double[rarities.length];
+            for(int id = 0; id < weights.length; id++)
+            {
+                if(!Float.isNaN(rarities[id]))
+                {
+                    weights[id] = withRarity ? Math.min(1D, (double)rarities[id]) : 1D;
+                }
+            }
+            if(withRarity)
+            {
+                rarityWeights = weights;
+            }
+            else
+            {
+                evenWeights = weights;
+            }
+        }
+        return weights;
+    }
+
+    public EnumChatFormatting getColour(String hatName)
+    {
+        int id = HatIds.findId(hatName);
+        return TIER_COLOURS[id >= 0 && id < rarities.length && !Float.isNaN(rarities[id]) ? tiers[id] : getTier(getRarity(new Random(), seed, hatName))];
+    }
+
+    public static float getRarity(Random gen, int seed, String hatName)
+    {
+        gen.setSeed(seed);
+        int hash = Math.abs(hatName.toLowerCase().hashCode());
+        if(hash <= 0)
+        {
+            //nextInt needs a positive bound, an empty name or Integer.MIN_VALUE hash would throw.
+            return 0F;
+        }
+        int rand = gen.nextInt(hash);
+        return (float)rand / (float)hash;
+    }
+
+    /**
+     * Sevenths, rarest first. The last tier is the commonest.
+     */
+    public static int getTier(float rarity)
+    {
+        for(int i = 1; i < TIER_COLOURS.length; i++)
+        {
+            if(rarity < (float)i / 7F)
+            {
+                return i - 1;
+            }
+        }
+        return TIER_COLOURS.length - 1;
+    }
+}
@@ -0,0 +1,202 @@
+package hats.common.core;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Read only snapshot of the loaded hats. Loaders and the folder watcher build up the working maps in HatHandler
+ * under HatHandler.registryLock and publish a new snapshot when they're done, so the render, server and network threads
+ * always see one complete library, never a half loaded or empty one.
+ */
+public final class HatRegistry
+{
+    public static final HatRegistry EMPTY = new HatRegistry(0, new HashMap<File, String>(), new HashMap<String, File>(), new HashMap<String, File>(), new HashMap<String, ArrayList<String>>());
+
+    public final int generation;
+
+    public final Map<File, String> hatNames;
+
+    /**
+     * Lower case hat name to the file backing it, remapped duplicates included.
+     */
+    public final Map<String, File> hatFiles;
+
+    public final Map<String, File> checksums;
+
+    public final Map<String, List<String>> categories;
+
+    public final Map<String, Set<String>> categoryMembers;
+
+    private volatile NameIndex nameIndex;
+
+    private volatile List<String> allHatNames;
+
+    public HatRegistry(int generation, Map<File, String> hatNames, Map<String, File> hatFiles, Map<String, File> checksums, Map<String, ArrayList<String>> categories)
+    {
+        this.generation = generation;
+        this.hatNames = Collections.unmodifiableMap(new HashMap<File, String>(hatNames));
+        this.hatFiles = Collections.unmodifiableMap(new HashMap<String, File>(hatFiles));
+        this.checksums = Collections.unmodifiableMap(new HashMap<String, File>(checksums));
+
+        HashMap<String, List<String>> categoryCopy = new HashMap<String, List<String>>();
+        HashMap<String, Set<String>> memberCopy = new HashMap<String, Set<String>>();
+        for(Map.Entry<String, ArrayList<String>> e : categories.entrySet())
+        {
+            categoryCopy.put(e.getKey(), Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+            HashSet<String> members = new HashSet<String>();
+            for(String hat : e.getValue())
+            {
+                members.add(hat.toLowerCase());
+            }
+            memberCopy.put(e.getKey(), Collections.unmodifiableSet(members));
+        }
+        this.categories = Collections.unmodifiableMap(categoryCopy);
+        this.categoryMembers = Collections.unmodifiableMap(memberCopy);
+    }
+
+    public int size()
+    {
+        return hatNames.size();
+    }
+
+    public boolean hasHat(String hatName)
+    {
+        return hatFiles.containsKey(hatName.toLowerCase());
+    }
+
+    public File getFile(String hatName)
+    {
+        return hatFiles.get(hatName.toLowerCase());
+    }
+
+    /**
+     * The hat's name as it's spelt on disk, or null if there's no such hat.
+     */
+    public String getDisplayName(String hatName)
+    {
+        File file = hatFiles.get(hatName.toLowerCase());
+        return file != null ? file.getName().substring(0, file.getName().length() - 4) : null;
+    }
+
+    /**
+     * Every hat whose name starts with the prefix, ignoring case. An exact match comes first, the rest in alphabetical order.
+     */
+    public List<String> getHatsStartingWith(String prefix)
+    {
+        NameIndex index = getNameIndex();
+        String key = prefix.toLowerCase();
+        ArrayList<String> hats = new ArrayList<String>();
+        for(int i = index.lowerBound(key); i < index.keys.length && index.keys[i].startsWith(key); i++)
+        {
+            hats.add(index.names[i]);
+        }
+        return hats;
+    }
+
+    /**
+     * The exact match if there is one, otherwise the first hat alphabetically that starts with the prefix. Null if none do.
+     */
+    public String getFirstHatStartingWith(String prefix)
+    {
+        NameIndex index = getNameIndex();
+        int i = index.lowerBound(prefix.toLowerCase());
+        return i < index.keys.length && index.keys[i].startsWith(prefix.toLowerCase()) ? index.names[i] : null;
+    }
+
+    /**
+     * Every hat name as spelt on disk, sorted ignoring case. Don't modify it.
+     */
+    public String[] getSortedHatNames()
+    {
+        return getNameIndex().names;
+    }
+
+    /**
+     * Where this hat sits in getSortedHatNames, or -1 if there's no such hat.
+     */
+    public int indexOf(String hatName)
+    {
+        int i = Arrays.binarySearch(getNameIndex().keys, hatName.toLowerCase());
+        return i >= 0 ? i : -1;
+    }
+
+    /**
+     * CRC32 of the sorted hat names, so the same set of hats gives the same value across restarts and reloads.
+     */
+    public int getNameChecksum()
+    {
+        return getNameIndex().checksum;
+    }
+
+    /**
+     * Every hat file's name, copies in category folders included, sorted. Built once per registry and shared, so it can't be modified.
+     */
+    public List<String> getAllHatNames()
+    {
+        List<String> list = allHatNames;
+        if(list == null)
+        {
+            ArrayList<String> hatNameList = new ArrayList<String>(hatNames.size());
+            for(File file : hatNames.keySet())
+            {
+                hatNameList.add(file.getName().substring(0, file.getName().length() - 4));
+            }
+            Collections.sort(hatNameList);
+            list = allHatNames = Collections.unmodifiableList(hatNameList);
+        }
+        return list;
+    }
+
+    private NameIndex getNameIndex()
+    {
+        //Built on first use, plenty of registries (eg. a category toggle) never get asked.
+        NameIndex index = nameIndex;
+        if(index == null)
+        {
+            index = nameIndex = new NameIndex(this);
+        }
+        return index;
+    }
+
+    private static class NameIndex
+    {
+        public final String[] keys;
+        public final String[] names;
+        public final int checksum;
+
+        public NameIndex(HatRegistry registry)
+        {
+            TreeMap<String, String> sorted = new TreeMap<String, String>();
+            for(String hatName : registry.hatNames.values())
+            {
+                String key = hatName.toLowerCase();
+                if(!sorted.containsKey(key))
+                {
+                    sorted.put(key, registry.getDisplayName(key));
+                }
+            }
+            keys = sorted.keySet().toArray(new String[sorted.size()]);
+            names = sorted.values().toArray(new String[sorted.size()]);
+
+            CRC32 crc = new CRC32();
+            for(String key : keys)
+            {
+                crc.update(key.getBytes(Charsets.UTF_8));
+                crc.update('\n');
+            }
+            checksum = (int)crc.getValue();
+        }
+
+        /**
+         * Index of the first key not less than the given one. An exact match sorts before anything it prefixes.
+         */
+        public int lowerBound(String key)
+        {
+            int i = Arrays.binarySearch(keys, key);
+            return i >= 0 ? i : -(i + 1);
+        }
+    }
+}
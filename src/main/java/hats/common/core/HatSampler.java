@@ -0,0 +1,161 @@
+package hats.common.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws hats from a fixed weighted list in constant time using Vose's alias method.
+ * Build it once per list and weights, each draw is then one random index and one coin flip.
+ */
+public final class HatSampler
+{
+    /**
+     * Tries per pass and how much the acceptance chance grows after each pass, as getRandomHatFromList has always done it.
+     */
+    public static final int TRIES_PER_PASS = 500;
+    public static final float AMP_PER_PASS = 0.05F;
+
+    private static final int MAX_PASSES = 1000000;
+
+    public final String[] hats;
+
+    private final double[] prob;
+    private final int[] alias;
+
+    public HatSampler(String[] hats, double[] weights)
+    {
+        this.hats = hats;
+        int n = hats.length;
+        prob = new double[n];
+        alias = new int[n];
+
+        double total = 0D;
+        for(double weight : weights)
+        {
+            total += weight;
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for(int i = 0; i < n; i++)
+        {
+            //Nothing to weight by, every hat gets the same chance.
+            scaled[i] = total > 0D ? weights[i] * n / total : 1D;
+            if(scaled[i] < 1D)
+            {
+                small[smallCount++] = i;
+            }
+            else
+            {
+                large[largeCount++] = i;
+            }
+        }
+        while(smallCount > 0 && largeCount > 0)
+        {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            prob[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1D;
+            if(scaled[more] < 1D)
+            {
+                small[smallCount++] = more;
+            }
+            else
+            {
+                large[largeCount++] = more;
+            }
+        }
+        //Whatever's left is 1 give or take rounding.
+        while(largeCount > 0)
+        {
+            prob[large[--largeCount]] = 1D;
+        }
+        while(smallCount > 0)
+        {
+            prob[small[--smallCount]] = 1D;
+        }
+    }
+
+    public int size()
+    {
+        return hats.length;
+    }
+
+    public int sampleIndex(Random rand)
+    {
+        int i = rand.nextInt(prob.length);
+        return rand.nextDouble() < prob[i] ? i : alias[i];
+    }
+
+    /**
+     * A random hat, or null if there aren't any.
+     */
+    public String sample(Random rand)
+    {
+        return hats.length == 0 ? null : hats[sampleIndex(rand)];
+    }
+
+    /**
+     * The chance of each entry coming out of the old rejection loop: pick one at random, accept it with chance rarity * amp,
+     * raise amp by AMP_PER_PASS after every TRIES_PER_PASS misses. Each pass accepts entry i with chance min(1, r[i] * amp),
+     * and the loop only reaches the next pass if all of this pass's tries missed.
+     */
+    public static double[] getRarityWeights(float[] rarities)
+    {
+        double[] base = new double[rarities.length];
+        Arrays.fill(base, 1D);
+        return getRarityWeights(rarities, base);
+    }
+
+    /**
+     * As above, but entries are picked in proportion to base instead of evenly before the rarity roll.
+     */
+    public static double[] getRarityWeights(float[] rarities, double[] base)
+    {
+        int n = rarities.length;
+        double[] weights = new double[n];
+        double total = 0D;
+        for(double weight : base)
+        {
+            total += weight;
+        }
+        if(n == 0 || total <= 0D)
+        {
+            return weights;
+        }
+
+        double remaining = 1D;
+        float amp = 1.0F;
+        double[] accept = new double[n];
+        for(int pass = 0; pass < MAX_PASSES && remaining > 1E-15D; pass++)
+        {
+            double sum = 0D;
+            for(int i = 0; i < n; i++)
+            {
+                accept[i] = base[i] * Math.min(1D, (double)(rarities[i] * amp));
+                sum += accept[i];
+            }
+            if(sum > 0D)
+            {
+                double p = sum / total;
+                double reached = 1D - Math.pow(1D - p, TRIES_PER_PASS);
+                for(int i = 0; i < n; i++)
+                {
+                    weights[i] += remaining * reached * accept[i] / sum;
+                }
+                remaining *= 1D - reached;
+            }
+            else if(pass == 0)
+            {
+                //Every hat has rarity 0. The old loop never finished, fall back to the base weights instead.
+                return base.clone();
+            }
+            amp += AMP_PER_PASS;
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,356 @@
+package hats.common.core;
+
+import hats.common.Hats;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldSavedData;
+import net.minecraftforge.common.util.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * How hats are saved on mobs and players. The world keeps one list of every hat name a mob has been saved with, which only ever grows
+ * and has each name once, and a hatted mob saves its hat's place in that list as a short in its entity data, with the list's version.
+ * The list gets a new random version the first time it grows after loading, and remembers how long it was at each one, so a mob
+ * saved before a crash, or against a list that was since deleted or rolled back, isn't read against names that regrew in a different order.
+ * Mobs without a hat save nothing, their roll comes out the same next time.
+ * Only a spawner mob that would have rolled one gets NO_HAT, so it doesn't get it when loaded away from the spawner.
+ * A player's unlocked hats are a list of name and count pairs in their persisted data, changed in place as hats are unlocked.
+ * They don't point into the world's list, so a player's hats are all in their own file, and go with it to another world.
+ * Mobs and players saved with the old strings are moved over the first time they load.
+ */
+public class HatSaveData extends WorldSavedData
+{
+    public static final String NAME = "Hats_Names";
+
+    public static final String TAG = "Hats_hatIndex";
+    public static final String VERSION_TAG = "Hats_hatList";
+    public static final String LEGACY_TAG = "Hats_hatInfo";
+
+    public static final String PLAYER_TAG = "Hats_hats";
+    public static final String PLAYER_LEGACY_TAG = "Hats_unlocked";
+
+    public static final int NO_HAT = -1;
+    public static final int NOT_SAVED = -2;
+
+    /**
+     * Indexes have to fit a short, past this many names a mob's hat is saved as its name instead.
+     */
+    public static final int MAX_NAMES = Short.MAX_VALUE + 1;
+
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+
+    /**
+     * HatIds ID of each name, -1 until a mob with it is loaded, so names no mob uses any more aren't looked up.
+     */
+    private int[] ids = new int[0];
+
+    /**
+     * Every version this list has been saved under and how many names it had then. The last is the current one.
+     */
+    private final ArrayList<Long> versions = new ArrayList<Long>();
+    private final HashMap<Long, Integer> versionSizes = new HashMap<Long, Integer>();
+
+    /**
+     * Whether the current version was started since the list was loaded, names can only be added to one that was.
+     */
+    private boolean versionStarted;
+
+    public HatSaveData(String name)
+    {
+        super(name);
+    }
+
+    public static HatSaveData get(World world)
+    {
+        //mapStorage is shared by every dimension.
+        HatSaveData data = (HatSaveData)world.mapStorage.loadData(HatSaveData.class, NAME);
+        if(data == null)
+        {
+            data = new HatSaveData(NAME);
+            world.mapStorage.setData(NAME, data);
+        }
+        return data;
+    }
+
+    /**
+     * The HatIds ID of the hat saved on this mob, -1 if it was saved without one, or NOT_SAVED if nothing was saved and it should be rolled.
+     */
+    public static int readHat(EntityLivingBase living)
+    {
+        NBTTagCompound tag = living.getEntityData();
+        if(tag.hasKey(TAG))
+        {
+            int index = tag.getShort(TAG);
+            if(index == NO_HAT)
+            {
+                return -1;
+            }
+            int id = get(living.worldObj).decode(tag.getLong(VERSION_TAG), index);
+            if(id >= 0)
+            {
+                return id;
+            }
+            //Saved against a list this world doesn't have, roll it again. The roll is seeded so it's the same hat unless the library changed.
+            tag.removeTag(TAG);
+            tag.removeTag(VERSION_TAG);
+            return NOT_SAVED;
+        }
+        if(tag.hasKey(LEGACY_TAG))
+        {
+            String hatName = tag.getString(LEGACY_TAG).trim();
+            if(hatName.isEmpty())
+            {
+                //The old format saved an empty name on every hatless mob. Those save nothing now, and roll like any other unsaved mob.
+                tag.removeTag(LEGACY_TAG);
+                return NOT_SAVED;
+            }
+            writeHat(living, hatName);
+            return HatIds.getId(hatName);
+        }
+        return NOT_SAVED;
+    }
+
+    /**
+     * Saves the hat on this mob, an empty name saving NO_HAT. A hat there's no room left in the world's list for keeps the old string.
+     */
+    public static void writeHat(EntityLivingBase living, String hatName)
+    {
+        NBTTagCompound tag = living.getEntityData();
+        HatSaveData data = get(living.worldObj);
+        int index = hatName.isEmpty() ? NO_HAT : data.encode(hatName);
+        if(index == NOT_SAVED)
+        {
+            tag.removeTag(TAG);
+            tag.removeTag(VERSION_TAG);
+            tag.setString(LEGACY_TAG, hatName);
+        }
+        else
+        {
+            tag.removeTag(LEGACY_TAG);
+            tag.setShort(TAG, (short)index);
+            if(index == NO_HAT)
+            {
+                tag.removeTag(VERSION_TAG);
+            }
+            else
+            {
+                tag.setLong(VERSION_TAG, data.getVersion(index));
+            }
+        }
+    }
+
+    /**
+     * Fills in the player's unlocked hats from their persisted data.
+     */
+    public static void readPlayerHats(EntityPlayer player, HatCounts hats)
+    {
+        NBTTagCompound persistentTag = player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
+        if(persistentTag.hasKey(PLAYER_TAG, Constants.NBT.TAG_LIST))
+        {
+            NBTTagList owned = persistentTag.getTagList(PLAYER_TAG, Constants.NBT.TAG_COMPOUND);
+            hats.clear();
+            for(int i = 0; i < owned.tagCount(); i++)
+            {
+                NBTTagCompound hat = owned.getCompoundTagAt(i);
+                String hatName = hat.getString("Name");
+                int count = hat.getInteger("Count");
+                if(!hatName.isEmpty() && count > 0)
+                {
+                    hats.add(HatIds.getId(hatName), count);
+                }
+            }
+        }
+        else
+        {
+            //Only parsed once, it's saved in the new format straight away.
+            hats.readFrom(persistentTag.getString(PLAYER_LEGACY_TAG));
+            writePlayerHats(player, hats);
+        }
+    }
+
+    /**
+     * Saves all of the player's unlocked hats, for when many change at once, like a trade.
+     */
+    public static void writePlayerHats(EntityPlayer player, HatCounts hats)
+    {
+        NBTTagList owned = new NBTTagList();
+        for(int i = 0; i < hats.size(); i++)
+        {
+            owned.appendTag(createPlayerHat(hats.getNameAt(i), hats.getCountAt(i)));
+        }
+        NBTTagCompound persistentTag = player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
+        persistentTag.removeTag(PLAYER_LEGACY_TAG);
+        persistentTag.setTag(PLAYER_TAG, owned);
+        player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+    }
+
+    /**
+     * Saves the count of one hat, changing its entry in the saved list where it is instead of writing every hat again.
+     */
+    public static void writePlayerHat(EntityPlayer player, int hatId, int count)
+    {
+        NBTTagCompound persistentTag = player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
+        if(!persistentTag.hasKey(PLAYER_TAG, Constants.NBT.TAG_LIST))
+        {
+            writePlayerHats(player, Hats.proxy.tickHandlerServer.getPlayerHatsList(player.getCommandSenderName()));
+            return;
+        }
+        String hatName = HatIds.getName(hatId);
+        //getTagList hands back the tag's own list.
+        NBTTagList owned = persistentTag.getTagList(PLAYER_TAG, Constants.NBT.TAG_COMPOUND);
+        for(int i = 0; i < owned.tagCount(); i++)
+        {
+            NBTTagCompound hat = owned.getCompoundTagAt(i);
+            if(hat.getString("Name").equalsIgnoreCase(hatName))
+            {
+                if(count > 0)
+                {
+                    hat.setInteger("Count", count);
+                }
+                else
+                {
+                    owned.removeTag(i);
+                }
+                player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+                return;
+            }
+        }
+        if(count > 0)
+        {
+            owned.appendTag(createPlayerHat(hatName, count));
+            player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+        }
+    }
+
+    private static NBTTagCompound createPlayerHat(String hatName, int count)
+    {
+        NBTTagCompound hat = new NBTTagCompound();
+        hat.setString("Name", hatName.trim());
+        hat.setInteger("Count", count);
+        return hat;
+    }
+
+    /**
+     * This hat's place in the world's list, added to the end if it's new, or NOT_SAVED if the list is full.
+     */
+    public int encode(String hatName)
+    {
+        String key = hatName.trim().toLowerCase();
+        Integer index = indexes.get(key);
+        if(index == null)
+        {
+            if(names.size() >= MAX_NAMES)
+            {
+                return NOT_SAVED;
+            }
+            if(!versionStarted)
+            {
+                //Anything added from here on isn't saved yet, mobs saved with it carry a version the saved list doesn't know until it is.
+                long version = HatHandler.getRand().nextLong();
+                versions.add(version);
+                versionSizes.put(version, names.size());
+                versionStarted = true;
+            }
+            index = names.size();
+            names.add(key);
+            indexes.put(key, index);
+            markDirty();
+        }
+        return index;
+    }
+
+    /**
+     * The version to save with an index handed out by encode. Names from before this session are already on disk, so those get the
+     * version they were saved under and still read back after a crash.
+     */
+    public long getVersion(int index)
+    {
+        int last = versions.size() - 1;
+        if(versionStarted && last > 0 && index < versionSizes.get(versions.get(last)))
+        {
+            return versions.get(last - 1);
+        }
+        return versions.get(last);
+    }
+
+    /**
+     * The HatIds ID for a place in the world's list as it was at this version, or -1 if this world doesn't know it.
+     */
+    public int decode(long version, int index)
+    {
+        Integer size = versionSizes.get(version);
+        if(size == null || index < 0 || index >= (version == versions.get(versions.size() - 1) ? names.size() : size))
+        {
+            return -1;
+        }
+        if(ids.length < names.size())
+        {
+            int length = ids.length;
+            ids = Arrays.copyOf(ids, names.size());
+            Arrays.fill(ids, length, ids.length, -1);
+        }
+        if(ids[index] < 0)
+        {
+            ids[index] = HatIds.getId(names.get(index));
+        }
+        return ids[index];
+    }
+
+    public int getNameCount()
+    {
+        return names.size();
+    }
+
+    @Override
+    public void readFromNBT(NBTTagCompound tag)
+    {
+        names.clear();
+        indexes.clear();
+        ids = new int[0];
+        versions.clear();
+        versionSizes.clear();
+        versionStarted = false;
+        NBTTagList list = tag.getTagList("Names", Constants.NBT.TAG_STRING);
+        for(int i = 0; i < list.tagCount(); i++)
+        {
+            String hatName = list.getStringTagAt(i);
+            names.add(hatName);
+            indexes.put(hatName, i);
+        }
+        NBTTagList saved = tag.getTagList("Versions", Constants.NBT.TAG_COMPOUND);
+        for(int i = 0; i < saved.tagCount(); i++)
+        {
+            NBTTagCompound version = saved.getCompoundTagAt(i);
+            versions.add(version.getLong("Id"));
+            versionSizes.put(version.getLong("Id"), Math.min(version.getInteger("Size"), names.size()));
+        }
+    }
+
+    @Override
+    public void writeToNBT(NBTTagCompound tag)
+    {
+        NBTTagList list = new NBTTagList();
+        for(String hatName : names)
+        {
+            list.appendTag(new NBTTagString(hatName));
+        }
+        tag.setTag("Names", list);
+        NBTTagList saved = new NBTTagList();
+        for(int i = 0; i < versions.size(); i++)
+        {
+            NBTTagCompound version = new NBTTagCompound();
+            version.setLong("Id", versions.get(i));
+            version.setInteger("Size", i == versions.size() - 1 ? names.size() : versionSizes.get(versions.get(i)));
+            saved.appendTag(version);
+        }
+        tag.setTag("Versions", saved);
+    }
+}
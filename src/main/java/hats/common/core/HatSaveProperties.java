@@ -0,0 +1,38 @@
+package hats.common.core;
+
+import hats.common.Hats;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.world.World;
+import net.minecraftforge.common.IExtendedEntityProperties;
+
+/**
+ * Put on every server player so their unsaved hat changes are written out as the player is saved.
+ * Forge's save event only fires once the file is written, too late to get anything into it, but this is called while the player
+ * is being written to NBT. Nothing is saved under its own name, the hats go in the player's persisted data like always.
+ */
+public class HatSaveProperties implements IExtendedEntityProperties
+{
+    public static final String NAME = "Hats_save";
+
+    private EntityPlayer player;
+
+    @Override
+    public void init(Entity entity, World world)
+    {
+        player = (EntityPlayer)entity;
+    }
+
+    @Override
+    public void saveNBTData(NBTTagCompound compound)
+    {
+        if(player != null)
+        {
+            Hats.proxy.tickHandlerServer.saveHats(player);
+        }
+    }
+
+    @Override
+    public void loadNBTData(NBTTagCompound compound){}
+}
@@ -0,0 +1,268 @@
+package hats.common.core;
+
+import hats.common.Hats;
+import hats.common.packet.PacketMobHatsList;
+import ichun.common.core.network.PacketHandler;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.tileentity.MobSpawnerBaseLogic;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+
+import java.util.*;
+
+/**
+ * Mobs waiting for their hat roll. Joining the world only queues the mob, the rolls are done at the end of its world's tick,
+ * a chunk at a time and no more than mobHatsPerTick of them, so a chunk full of mobs loading at once doesn't stall the tick.
+ * Mobs from one chunk share one look for nearby spawners.
+ * A client asking about a mob that hasn't been rolled yet is answered as soon as it is, so it never sees a mob as hatless by mistake.
+ */
+public class MobHatQueue
+{
+    private final HashMap<Integer, LinkedHashMap<Long, Batch>> dimensions = new HashMap<Integer, LinkedHashMap<Long, Batch>>();
+
+    private final HashSet<Integer> pending = new HashSet<Integer>();
+
+    private final HashMap<Integer, ArrayList<EntityPlayer>> waiting = new HashMap<Integer, ArrayList<EntityPlayer>>();
+
+    public synchronized void add(EntityLivingBase living)
+    {
+        if(!pending.add(living.getEntityId()))
+        {
+            return;
+        }
+        LinkedHashMap<Long, Batch> chunks = dimensions.get(living.worldObj.provider.dimensionId);
+        if(chunks == null)
+        {
+            chunks = new LinkedHashMap<Long, Batch>();
+            dimensions.put(living.worldObj.provider.dimensionId, chunks);
+        }
+        long key = getChunkKey(living);
+        Batch batch = chunks.get(key);
+        if(batch == null)
+        {
+            batch = new Batch(key);
+            chunks.put(key, batch);
+        }
+        batch.mobs.add(living);
+    }
+
+    public synchronized boolean contains(Entity entity)
+    {
+        return pending.contains(entity.getEntityId());
+    }
+
+    /**
+     * If the mob is still waiting for its roll, remembers that this player asked about it and returns true.
+     */
+    public synchronized boolean addWaiting(Entity entity, EntityPlayer player)
+    {
+        if(!pending.contains(entity.getEntityId()))
+        {
+            return false;
+        }
+        ArrayList<EntityPlayer> players = waiting.get(entity.getEntityId());
+        if(players == null)
+        {
+            players = new ArrayList<EntityPlayer>();
+            waiting.put(entity.getEntityId(), players);
+        }
+        players.add(player);
+        return true;
+    }
+
+    /**
+     * Drops the mob from the queue when it leaves the world, unloaded with its chunk included. Its batch skips it once it's no longer pending.
+     */
+    public synchronized void remove(Entity entity)
+    {
+        if(pending.remove(entity.getEntityId()))
+        {
+            waiting.remove(entity.getEntityId());
+        }
+    }
+
+    public synchronized int size()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Rolls hats for up to budget queued mobs in this world, oldest chunk first, then tells anyone who asked about them.
+     */
+    public void process(World world, int budget)
+    {
+        HashMap<EntityPlayer, ArrayList<Integer>> replyIds = new HashMap<EntityPlayer, ArrayList<Integer>>();
+        HashMap<EntityPlayer, ArrayList<String>> replyNames = new HashMap<EntityPlayer, ArrayList<String>>();
+
+        synchronized(this)
+        {
+            LinkedHashMap<Long, Batch> chunks = dimensions.get(world.provider.dimensionId);
+            if(chunks == null || chunks.isEmpty())
+            {
+                return;
+            }
+
+            Iterator<Batch> ite = chunks.values().iterator();
+            while(budget > 0 && ite.hasNext())
+            {
+                Batch batch = ite.next();
+                int done = 0;
+                for(; done < batch.mobs.size() && budget > 0; done++)
+                {
+                    EntityLivingBase living = batch.mobs.get(done);
+                    if(!pending.remove(living.getEntityId()))
+                    {
+                        //Already rolled by assignNow.
+                        continue;
+                    }
+                    ArrayList<EntityPlayer> players = waiting.remove(living.getEntityId());
+                    //Gone already, moved to another world and queued there, or its chunk unloaded before its turn.
+                    if(living.isDead || living.worldObj != world || !living.addedToChunk || world.getEntityByID(living.getEntityId()) != living)
+                    {
+                        continue;
+                    }
+                    budget--;
+
+                    String hatName = assign(living, batch);
+                    if(hatName != null && players != null)
+                    {
+                        for(EntityPlayer player : players)
+                        {
+                            ArrayList<Integer> ids = replyIds.get(player);
+                            if(ids == null)
+                            {
+                                ids = new ArrayList<Integer>();
+                                replyIds.put(player, ids);
+                                replyNames.put(player, new ArrayList<String>());
+                            }
+                            ids.add(living.getEntityId());
+                            replyNames.get(player).add(hatName);
+                        }
+                    }
+                }
+
+                if(done == batch.mobs.size())
+                {
+                    ite.remove();
+                }
+                else
+                {
+                    batch.mobs.subList(0, done).clear();
+                }
+            }
+        }
+
+        for(Map.Entry<EntityPlayer, ArrayList<Integer>> e : replyIds.entrySet())
+        {
+            ArrayList<Integer> ids = e.getValue();
+            ids.add(-2);
+            PacketHandler.sendToPlayer(Hats.channels, new PacketMobHatsList(ids, replyNames.get(e.getKey())), e.getKey());
+        }
+    }
+
+    /**
+     * Rolls this mob's hat straight away if it's still queued, for when something needs the answer this tick, like the mob being killed.
+     */
+    public synchronized void assignNow(EntityLivingBase living)
+    {
+        if(!pending.remove(living.getEntityId()))
+        {
+            return;
+        }
+        waiting.remove(living.getEntityId());
+        LinkedHashMap<Long, Batch> chunks = dimensions.get(living.worldObj.provider.dimensionId);
+        Batch batch = chunks != null ? chunks.get(getChunkKey(living)) : null;
+        if(batch == null)
+        {
+            //Queued from another chunk, it's wandered since. Its old batch skips it now it's no longer pending.
+            batch = new Batch(getChunkKey(living));
+        }
+        assign(living, batch);
+    }
+
+    /**
+     * The mob's saved hat, or a new roll for it, put in the mob hat table. Returns the hat name or null if it has none.
+     */
+    private static String assign(EntityLivingBase living, Batch batch)
+    {
+        int hat = HatSaveData.readHat(living);
+        if(hat == HatSaveData.NOT_SAVED)
+        {
+            //Rolled from the world seed and UUID, so a mob without a hat gets the same result next time it loads and needs nothing saved.
+            Random random = HatHandler.getEntityRand(living);
+            String hatName = random.nextFloat() < ((float)Hats.config.getInt("randomMobHat") / 100F) ? HatHandler.getRandomHatWithWeightedContributors(Hats.config.getSessionInt("playerHatsMode") == 4 && Hats.config.getInt("hatRarity") == 1, random).hatName : "";
+            if(!hatName.isEmpty())
+            {
+                if(HatHandler.isFromSpawner(living, batch.getSpawners(living.worldObj)))
+                {
+                    //Spawner mobs don't get hats. This one would have, so remember that in case it's loaded away from the spawner.
+                    hatName = "";
+                }
+                HatSaveData.writeHat(living, hatName);
+            }
+            hat = HatIds.getId(hatName);
+        }
+        if(hat < 0)
+        {
+            return null;
+        }
+        Hats.proxy.tickHandlerServer.mobHats.put(living, hat);
+        //Lower case like the names in the hat registry, the client keys its models by those.
+        return HatIds.getName(hat).trim().toLowerCase();
+    }
+
+    private static long getChunkKey(Entity entity)
+    {
+        return ChunkCoordIntPair.chunkXZ2Int(MathHelper.floor_double(entity.posX) >> 4, MathHelper.floor_double(entity.posZ) >> 4);
+    }
+
+    public synchronized void clearDimension(int dimensionId)
+    {
+        LinkedHashMap<Long, Batch> chunks = dimensions.remove(dimensionId);
+        if(chunks != null)
+        {
+            for(Batch batch : chunks.values())
+            {
+                for(EntityLivingBase living : batch.mobs)
+                {
+                    pending.remove(living.getEntityId());
+                    waiting.remove(living.getEntityId());
+                }
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        dimensions.clear();
+        pending.clear();
+        waiting.clear();
+    }
+
+    /**
+     * The mobs queued from one chunk, and the active spawners around it once a mob there needs checking.
+     */
+    private static class Batch
+    {
+        public final long chunkKey;
+        public final ArrayList<EntityLivingBase> mobs = new ArrayList<EntityLivingBase>();
+        private List<MobSpawnerBaseLogic> spawners;
+
+        public Batch(long chunkKey)
+        {
+            this.chunkKey = chunkKey;
+        }
+
+        public List<MobSpawnerBaseLogic> getSpawners(World world)
+        {
+            if(spawners == null)
+            {
+                spawners = HatHandler.getActiveSpawners(world, (int)(chunkKey & 0xffffffffL), (int)(chunkKey >>> 32));
+            }
+            return spawners;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package hats.common.core;
+
+import net.minecraft.entity.Entity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The hat each mob is wearing on the server, as a HatIds ID per entity ID, one table per dimension.
+ * Entries are dropped by MobHatWorldAccess as entities leave their world (death, chunk unload, changing dimension),
+ * so nothing ever has to sweep the whole table looking for dead mobs.
+ * Packets look mobs up from the netty threads while the server thread fills it in, so every access takes the table's lock.
+ */
+public class MobHatTable
+{
+    private final HashMap<Integer, Dimension> dimensions = new HashMap<Integer, Dimension>();
+
+    /**
+     * The mob's hat ID, or -1 if it has no hat.
+     */
+    public synchronized int get(Entity entity)
+    {
+        Dimension dimension = dimensions.get(entity.worldObj.provider.dimensionId);
+        return dimension != null ? dimension.get(entity.getEntityId()) : -1;
+    }
+
+    public synchronized boolean contains(Entity entity)
+    {
+        return get(entity) >= 0;
+    }
+
+    public synchronized void put(Entity entity, int hat)
+    {
+        if(hat < 0)
+        {
+            remove(entity);
+            return;
+        }
+        Dimension dimension = dimensions.get(entity.worldObj.provider.dimensionId);
+        if(dimension == null)
+        {
+            dimension = new Dimension();
+            dimensions.put(entity.worldObj.provider.dimensionId, dimension);
+        }
+        dimension.put(entity.getEntityId(), hat);
+    }
+
+    public synchronized void remove(Entity entity)
+    {
+        Dimension dimension = dimensions.get(entity.worldObj.provider.dimensionId);
+        if(dimension != null)
+        {
+            dimension.remove(entity.getEntityId());
+        }
+    }
+
+    public synchronized void clearDimension(int dimensionId)
+    {
+        dimensions.remove(dimensionId);
+    }
+
+    public synchronized void clear()
+    {
+        dimensions.clear();
+    }
+
+    public synchronized int size()
+    {
+        int size = 0;
+        for(Dimension dimension : dimensions.values())
+        {
+            size += dimension.size;
+        }
+        return size;
+    }
+
+    /**
+     * Hatted mobs per dimension ID.
+     */
+    public synchronized TreeMap<Integer, Integer> getCounts()
+    {
+        TreeMap<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+        for(Map.Entry<Integer, Dimension> e : dimensions.entrySet())
+        {
+            counts.put(e.getKey(), e.getValue().size);
+        }
+        return counts;
+    }
+
+    /**
+     * Open addressing int to int map, entity ID to hat ID.
+     */
+    private static class Dimension
+    {
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private int[] keys = newKeys(64);
+        private int[] values = new int[64];
+        private int size;
+
+        public int get(int key)
+        {
+            int i = indexOf(key);
+            return i >= 0 ? values[i] : -1;
+        }
+
+        public void put(int key, int value)
+        {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while(keys[i] != EMPTY)
+            {
+                if(keys[i] == key)
+                {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            if(++size * 2 > keys.length)
+            {
+                resize(keys.length * 2);
+            }
+        }
+
+        public void remove(int key)
+        {
+            int i = indexOf(key);
+            if(i < 0)
+            {
+                return;
+            }
+            //Shift the rest of the run back so lookups never stop early at the gap.
+            int mask = keys.length - 1;
+            int j = i;
+            while(true)
+            {
+                j = (j + 1) & mask;
+                if(keys[j] == EMPTY)
+                {
+                    break;
+                }
+                int k = hash(keys[j]) & mask;
+                if(j > i ? (k <= i || k > j) : (k <= i && k > j))
+                {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = EMPTY;
+            size--;
+        }
+
+        private int indexOf(int key)
+        {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while(keys[i] != EMPTY)
+            {
+                if(keys[i] == key)
+                {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void resize(int capacity)
+        {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(capacity);
+            values = new int[capacity];
+            size = 0;
+            for(int i = 0; i < oldKeys.length; i++)
+            {
+                if(oldKeys[i] != EMPTY)
+                {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int[] newKeys(int capacity)
+        {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private static int hash(int key)
+        {
+            int h = key * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package hats.common.core;
+
+import hats.common.Hats;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.IWorldAccess;
+
+/**
+ * Added to every server world so MobHatTable hears about each entity leaving it. Everything else is ignored.
+ */
+public class MobHatWorldAccess implements IWorldAccess
+{
+    @Override
+    public void onEntityDestroy(Entity entity)
+    {
+        Hats.proxy.tickHandlerServer.mobHats.remove(entity);
+        Hats.proxy.tickHandlerServer.mobHatQueue.remove(entity);
+    }
+
+    @Override
+    public void onEntityCreate(Entity entity){}
+
+    @Override
+    public void markBlockForUpdate(int x, int y, int z){}
+
+    @Override
+    public void markBlockForRenderUpdate(int x, int y, int z){}
+
+    @Override
+    public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2){}
+
+    @Override
+    public void playSound(String sound, double x, double y, double z, float volume, float pitch){}
+
+    @Override
+    public void playSoundToNearExcept(EntityPlayer player, String sound, double x, double y, double z, float volume, float pitch){}
+
+    @Override
+    public void spawnParticle(String particle, double x, double y, double z, double velX, double velY, double velZ){}
+
+    @Override
+    public void playRecord(String record, int x, int y, int z){}
+
+    @Override
+    public void broadcastSound(int id, int x, int y, int z, int data){}
+
+    @Override
+    public void playAuxSFX(EntityPlayer player, int id, int x, int y, int z, int data){}
+
+    @Override
+    public void destroyBlockPartially(int breakerId, int x, int y, int z, int progress){}
+
+    @Override
+    public void onStaticEntitiesChanged(){}
+}
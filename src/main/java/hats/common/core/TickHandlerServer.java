@@ -18,7 +18,6 @@ import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.init.Blocks;
 import net.minecraft.item.ItemStack;
-import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.network.Packet;
 import net.minecraft.world.World;
 
@@ -32,21 +31,15 @@ public class TickHandlerServer
     {
         if(event.phase == TickEvent.Phase.START)
         {
+            if(Hats.config.getInt("hatSaveInterval") > 0 && ++ticksSinceHatSave >= Hats.config.getInt("hatSaveInterval") * 20)
+            {
+                saveAllHats();
+            }
+
             //            for(int i = 0; i < 200; i++)
             //            {
             //                HatHandler.unlockHat(FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().getPlayerForUsername("ohaiiChun"), HatHandler.getRandomHatFromList(HatHandler.getHatsWithWeightedContributors(), true).hatName);
             //            }
-            Iterator<Entry<EntityLivingBase, String>> iterator1 = mobHats.entrySet().iterator();
-
-            while(iterator1.hasNext())
-            {
-                Entry<EntityLivingBase, String> e = iterator1.next();
-                if(e.getKey().isDead)
-                {
-                    iterator1.remove();
-                }
-            }
-
             for(Map.Entry<String, TimeActiveInfo> e : playerActivity.entrySet())
             {
                 TimeActiveInfo info = e.getValue();
@@ -57,20 +50,13 @@ public class TickHandlerServer
                     info.levels++;
                     info.timeLeft = Hats.config.getInt("startTime");
 
-                    TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(e.getKey());
-
-                    ArrayList<String> newHats = HatHandler.getAllHatNamesAsList();
-
-                    for(Map.Entry<String, Integer> e1 : playerHatsList.entrySet())
-                    {
-                        newHats.remove(e1.getKey());
-                    }
+                    HatCounts playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(e.getKey());
 
                     EntityPlayerMP player = FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().func_152612_a(e.getKey());
 
-                    if(player != null && !newHats.isEmpty())
+                    if(player != null)
                     {
-                        HatHandler.unlockHat(player, HatHandler.getRandomHatFromList(newHats, Hats.config.getInt("hatRarity") == 1).hatName);
+                        HatHandler.unlockHat(player, HatHandler.getRandomHatNotIn(playerHatsList, Hats.config.getInt("hatRarity") == 1));
                     }
 
                     for(int i = 0; i < info.levels; i++)
@@ -99,44 +85,15 @@ public class TickHandlerServer
                 ti.update();
                 if(ti.trade1 && ti.trade2)
                 {
-                    TreeMap<String, Integer> trader1Hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(ti.trader1.getCommandSenderName());
+                    HatCounts trader1Hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(ti.trader1.getCommandSenderName());
 
-                    TreeMap<String, Integer> trader2Hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(ti.trader2.getCommandSenderName());
+                    HatCounts trader2Hats = Hats.proxy.tickHandlerServer.getPlayerHatsList(ti.trader2.getCommandSenderName());
 
                     transferHat(trader1Hats, trader2Hats, ti.trader1Hats);
                     transferHat(trader2Hats, trader1Hats, ti.trader2Hats);
 
-                    StringBuilder sb = new StringBuilder();
-                    for(Map.Entry<String, Integer> e1 : trader1Hats.entrySet())
-                    {
-                        String hatName = HatHandler.getNameForHat(e1.getKey());
-                        sb.append(hatName);
-                        if(e1.getValue() > 1)
-                        {
-                            sb.append(">" + e1.getValue());
-                        }
-                        sb.append(":");
-                    }
-
-                    NBTTagCompound persistentTag = ti.trader1.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
-                    persistentTag.setString("Hats_unlocked", sb.toString().length() > 0 ? sb.toString().substring(0, sb.toString().length() - 1) : sb.toString());
-                    ti.trader1.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
-
-                    StringBuilder sb1 = new StringBuilder();
-                    for(Map.Entry<String, Integer> e1 : trader2Hats.entrySet())
-                    {
-                        String hatName = HatHandler.getNameForHat(e1.getKey());
-                        sb1.append(hatName);
-                        if(e1.getValue() > 1)
-                        {
-                            sb1.append(">" + e1.getValue());
-                        }
-                        sb1.append(":");
-                    }
-
-                    persistentTag = ti.trader2.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
-                    persistentTag.setString("Hats_unlocked", sb1.toString().length() > 0 ? sb1.toString().substring(0, sb1.toString().length() - 1) : sb1.toString());
-                    ti.trader2.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+                    markHatsChanged(ti.trader1.getCommandSenderName());
+                    markHatsChanged(ti.trader2.getCommandSenderName());
 
                     EventHandler.sendPlayerSessionInfo(ti.trader1);
                     EventHandler.sendPlayerSessionInfo(ti.trader2);
@@ -175,6 +132,16 @@ public class TickHandlerServer
         }
     }
 
+    @SubscribeEvent
+    public void worldTick(TickEvent.WorldTickEvent event)
+    {
+        //End of the world's tick comes before its entity tracker update.
+        if(event.phase == TickEvent.Phase.END && !event.world.isRemote)
+        {
+            mobHatQueue.process(event.world, Hats.config.getInt("mobHatsPerTick"));
+        }
+    }
+
 //    @SubscribeEvent
 //    public void onWorldTick(TickEvent.WorldTickEvent event)
 //    {
@@ -200,58 +167,17 @@ public class TickHandlerServer
 //        }
 //    }
 
-    public void transferHat(TreeMap<String, Integer> origin, TreeMap<String, Integer> destination, TreeMap<String, Integer> hatsList)
+    public void transferHat(HatCounts origin, HatCounts destination, HatCounts hatsList)
     {
-        HashMap<String, Integer> temp = new HashMap<String, Integer>();
-        Iterator<Entry<String, Integer>> ite = origin.entrySet().iterator();
-        while(ite.hasNext())
+        for(int i = 0; i < hatsList.size(); i++)
         {
-            Map.Entry<String, Integer> e = ite.next();
-            for(Map.Entry<String, Integer> e1 : hatsList.entrySet())
+            int id = hatsList.getIdAt(i);
+            int count = hatsList.getCountAt(i);
+            if(origin.contains(id))
             {
-                if(e.getKey().equals(e1.getKey()))
-                {
-                    if(e.getValue() - e1.getValue() <= 0)
-                    {
-                        ite.remove();
-                        break;
-                    }
-                    else
-                    {
-                        temp.put(e.getKey(), e.getValue() - e1.getValue());
-                    }
-                }
+                origin.set(id, origin.get(id) - count);
             }
-        }
-        for(Entry<String, Integer> e : temp.entrySet())
-        {
-            origin.put(e.getKey(), e.getValue());
-        }
-        temp.clear();
-
-        Iterator<Entry<String, Integer>> ite1 = hatsList.entrySet().iterator();
-        while(ite1.hasNext())
-        {
-            Map.Entry<String, Integer> e = ite1.next();
-            for(Map.Entry<String, Integer> e1 : destination.entrySet())
-            {
-                if(e.getKey().equals(e1.getKey()))
-                {
-                    temp.put(e1.getKey(), e.getValue() + e1.getValue());
-                    ite1.remove();
-                    break;
-                }
-            }
-        }
-        for(Entry<String, Integer> e : temp.entrySet())
-        {
-            destination.put(e.getKey(), e.getValue());
-        }
-        temp.clear();
-
-        for(Map.Entry<String, Integer> e : hatsList.entrySet())
-        {
-            destination.put(e.getKey(), e.getValue());
+            destination.add(id, count);
         }
     }
 
@@ -315,22 +241,23 @@ public class TickHandlerServer
 
     public void playerKilledEntity(EntityLivingBase living, EntityPlayer player)
     {
-        String hat = mobHats.get(living);
+        mobHatQueue.assignNow(living);
+        int hat = mobHats.get(living);
 
         RenderOnEntityHelper helper = HatHandler.getRenderHelper(living.getClass());
 
-        if((helper == null || helper.canUnlockHat(living)) && hat != null)
+        if((helper == null || helper.canUnlockHat(living)) && hat >= 0)
         {
-            HatHandler.unlockHat(player, hat);
+            HatHandler.unlockHat(player, HatIds.getName(hat));
         }
         mobHats.remove(living);
     }
 
     public void playerDeath(EntityPlayer player)
     {
-        NBTTagCompound persistentTag = player.getEntityData().getCompoundTag(EntityPlayer.PERSISTED_NBT_TAG);
-        persistentTag.setString("Hats_unlocked", "");
-        player.getEntityData().setTag(EntityPlayer.PERSISTED_NBT_TAG, persistentTag);
+        //Only the saved hats are reset, so anything unsaved is dropped rather than written over the reset later.
+        unsavedHats.remove(player.getCommandSenderName());
+        HatSaveData.writePlayerHats(player, new HatCounts());
 
         Hats.proxy.playerWornHats.put(player.getCommandSenderName(), new HatInfo());
 
@@ -349,11 +276,13 @@ public class TickHandlerServer
                 playerDeath(oldKing);
             }
 
-            TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(Hats.config.getSessionString("currentKing"));
+            HatCounts playerHatsList = Hats.proxy.tickHandlerServer.getPlayerHatsList(Hats.config.getSessionString("currentKing"));
 
             Hats.proxy.tickHandlerServer.playerHats.put(Hats.config.getSessionString("currentKing"), null);
 
             Hats.proxy.tickHandlerServer.playerHats.put(newKing, playerHatsList);
+            //None of these are in the new king's saved data yet, a few hats changing in place later wouldn't write the rest.
+            markHatsChanged(newKing);
         }
         Hats.config.updateSession("currentKing", newKing);
         if(send)
@@ -362,22 +291,9 @@ public class TickHandlerServer
             {
                 if(player.getCommandSenderName().equalsIgnoreCase(Hats.config.getSessionString("currentKing")))
                 {
-                    StringBuilder sb = new StringBuilder();
-                    TreeMap<String, Integer> hats = Hats.proxy.tickHandlerServer.playerHats.get(newKing);
-                    if(hats != null)
-                    {
-                        for(Map.Entry<String, Integer> e : hats.entrySet())
-                        {
-                            sb.append(e.getKey());
-                            if(e.getValue() != 1)
-                            {
-                                sb.append(">" + e.getValue());
-                            }
-                            sb.append(":");
-                        }
-                    }
+                    HatCounts hats = Hats.proxy.tickHandlerServer.playerHats.get(newKing);
 
-                    PacketHandler.sendToPlayer(Hats.channels, new PacketKingOfTheHatInfo(Hats.config.getSessionString("currentKing"), sb.toString().length() > 0 ? sb.toString().substring(0, sb.toString().length() - 1) : sb.toString()), player);
+                    PacketHandler.sendToPlayer(Hats.channels, new PacketKingOfTheHatInfo(Hats.config.getSessionString("currentKing"), hats != null ? hats.writeToString() : ""), player);
                 }
                 else
                 {
@@ -400,19 +316,87 @@ public class TickHandlerServer
         activeTrades.add((new TradeInfo(player, plyr)).initialize());
     }
 
-    public TreeMap<String, Integer> getPlayerHatsList(String player)
+    public HatCounts getPlayerHatsList(String player)
     {
-        TreeMap<String, Integer> playerHatsList = Hats.proxy.tickHandlerServer.playerHats.get(player);
+        HatCounts playerHatsList = Hats.proxy.tickHandlerServer.playerHats.get(player);
         if(playerHatsList == null)
         {
-            playerHatsList = new TreeMap<String, Integer>();
+            playerHatsList = new HatCounts();
             Hats.proxy.tickHandlerServer.playerHats.put(player, playerHatsList);
         }
         return playerHatsList;
     }
 
-    public WeakHashMap<EntityLivingBase, String> mobHats = new WeakHashMap<EntityLivingBase, String>();
-    public HashMap<String, TreeMap<String, Integer>> playerHats = new HashMap<String, TreeMap<String, Integer>>();
+    public void markHatChanged(String player, int hatId)
+    {
+        if(!unsavedHats.containsKey(player))
+        {
+            unsavedHats.put(player, new HashSet<Integer>());
+        }
+        HashSet<Integer> hats = unsavedHats.get(player);
+        if(hats != null)
+        {
+            hats.add(hatId);
+        }
+    }
+
+    public void markHatsChanged(String player)
+    {
+        unsavedHats.put(player, null);
+    }
+
+    /**
+     * Writes the player's hat changes to their persisted data, if there are any. A few changed hats are updated in place, more than that
+     * and the whole list is written again.
+     */
+    public void saveHats(EntityPlayer player)
+    {
+        String name = player.getCommandSenderName();
+        if(!unsavedHats.containsKey(name))
+        {
+            return;
+        }
+        HashSet<Integer> hats = unsavedHats.remove(name);
+        HatCounts playerHatsList = getPlayerHatsList(name);
+        if(hats == null || hats.size() > 8)
+        {
+            HatSaveData.writePlayerHats(player, playerHatsList);
+        }
+        else
+        {
+            for(Integer id : hats)
+            {
+                HatSaveData.writePlayerHat(player, id, playerHatsList.get(id));
+            }
+        }
+    }
+
+    public void saveAllHats()
+    {
+        ticksSinceHatSave = 0;
+        for(String name : new ArrayList<String>(unsavedHats.keySet()))
+        {
+            EntityPlayerMP player = FMLCommonHandler.instance().getMinecraftServerInstance().getConfigurationManager().func_152612_a(name);
+            if(player != null)
+            {
+                saveHats(player);
+            }
+            else
+            {
+                //Saved when they logged out.
+                unsavedHats.remove(name);
+            }
+        }
+    }
+
+    public MobHatTable mobHats = new MobHatTable();
+    public MobHatQueue mobHatQueue = new MobHatQueue();
+    public HashMap<String, HatCounts> playerHats = new HashMap<String, HatCounts>();
+    /**
+     * Players whose unlocked hats changed since they were last saved, and which hats. A null set means all of them.
+     */
+    public HashMap<String, HashSet<Integer>> unsavedHats = new HashMap<String, HashSet<Integer>>();
+    public int ticksSinceHatSave;
     public HashMap<String, TimeActiveInfo> playerActivity = new HashMap<String, TimeActiveInfo>();
 
     public HashMap<String, TradeRequest> playerTradeRequests = new HashMap<String, TradeRequest>();
@@ -0,0 +1,105 @@
+package hats.common.core;
+
+import java.util.Random;
+
+/**
+ * Draws from the library hats a player doesn't own yet, each weighted by its rarity (or evenly), in O(log n).
+ * The weights sit in a Fenwick tree indexed by HatIds ID, a hat's weight going to 0 when it's unlocked and back when it's traded away,
+ * so neither a draw nor an unlock has to look at the whole library. Built for one HatRarityTable, HatCounts rebuilds it when that changes.
+ * The weights themselves are the table's, shared by every player, only the tree is the player's own.
+ */
+public final class UnownedHatSampler
+{
+    public final HatRarityTable table;
+
+    public final boolean withRarity;
+
+    private final double[] weights;
+    private final double[] tree;
+    private final int highestBit;
+
+    public UnownedHatSampler(HatRarityTable table, boolean withRarity, HatCounts owned)
+    {
+        this.table = table;
+        this.withRarity = withRarity;
+
+        weights = table.getSamplerWeights(withRarity);
+        int n = weights.length;
+        tree = new double[n + 1];
+        for(int id = 0; id < n; id++)
+        {
+            if(!owned.contains(id))
+            {
+                tree[id + 1] = weights[id];
+            }
+        }
+        //Linear time build, each node passes its sum up to its parent.
+        for(int i = 1; i <= n; i++)
+        {
+            int parent = i + (i & -i);
+            if(parent <= n)
+            {
+                tree[parent] += tree[i];
+            }
+        }
+        highestBit = n == 0 ? 0 : Integer.highestOneBit(n);
+    }
+
+    /**
+     * Call when a hat becomes owned or not, so its weight comes out of or goes back into the draw.
+     */
+    public void setOwned(int id, boolean owned)
+    {
+        if(id < 0 || id >= weights.length || weights[id] <= 0D)
+        {
+            return;
+        }
+        double delta = owned ? -weights[id] : weights[id];
+        for(int i = id + 1; i < tree.length; i += i & -i)
+        {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Sum of the weights of the unowned hats.
+     */
+    public double getTotal()
+    {
+        double total = 0D;
+        for(int i = tree.length - 1; i > 0; i -= i & -i)
+        {
+            total += tree[i];
+        }
+        return total;
+    }
+
+    /**
+     * A random unowned hat's ID, or -1 if there's nothing left with any weight.
+     */
+    public int sample(Random random, HatCounts owned)
+    {
+        double total = getTotal();
+        if(total <= 1E-9D)
+        {
+            return -1;
+        }
+        double target = random.nextDouble() * total;
+        int pos = 0;
+        for(int step = highestBit; step > 0; step >>= 1)
+        {
+            int next = pos + step;
+            if(next < tree.length && tree[next] <= target)
+            {
+                pos = next;
+                target -= tree[next];
+            }
+        }
+        //Rounding can leave the descent just past the last hat with weight, step back to it.
+        while(pos >= 0 && (pos >= weights.length || weights[pos] <= 0D || owned.contains(pos)))
+        {
+            pos--;
+        }
+        return pos;
+    }
+}
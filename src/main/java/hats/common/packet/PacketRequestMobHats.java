@@ -2,6 +2,7 @@ package hats.common.packet;
 
 import cpw.mods.fml.relauncher.Side;
 import hats.common.Hats;
+import hats.common.core.HatIds;
 import ichun.common.core.network.AbstractPacket;
 import ichun.common.core.network.PacketHandler;
 import io.netty.buffer.ByteBuf;
@@ -53,13 +54,15 @@ public class PacketRequestMobHats extends AbstractPacket
         for(Integer id : entIds)
         {
             Entity ent = player.worldObj.getEntityByID(id);
-            if(ent instanceof EntityLivingBase)
+            //Not rolled yet, it's sent once it is.
+            if(ent instanceof EntityLivingBase && !Hats.proxy.tickHandlerServer.mobHatQueue.addWaiting(ent, player))
             {
-                String hatName = Hats.proxy.tickHandlerServer.mobHats.get((EntityLivingBase)ent);
+                String hatName = HatIds.getName(Hats.proxy.tickHandlerServer.mobHats.get(ent));
                 if(hatName != null)
                 {
                     ids.add(id);
-                    names.add(hatName.trim());
+                    //The client keeps its hats by lower case name.
+                    names.add(hatName.trim().toLowerCase());
                 }
             }
         }
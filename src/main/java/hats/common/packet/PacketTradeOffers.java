@@ -5,6 +5,7 @@ import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import hats.client.gui.GuiTradeWindow;
 import hats.common.Hats;
+import hats.common.core.HatCounts;
 import hats.common.trade.TradeInfo;
 import ichun.common.core.network.AbstractPacket;
 import io.netty.buffer.ByteBuf;
@@ -86,7 +87,9 @@ public class PacketTradeOffers extends AbstractPacket
             {
                 if(ti.isPlayerInTrade(player))
                 {
-                    ti.receiveTradeInfo(tradeHats, tradeItems, (EntityPlayerMP)player);
+                    HatCounts hats = new HatCounts();
+                    hats.readFrom(tradeHats);
+                    ti.receiveTradeInfo(hats, tradeItems, (EntityPlayerMP)player);
 
                     break;
                 }
@@ -0,0 +1,109 @@
+package hats.common.thread;
+
+import hats.common.Hats;
+import hats.common.core.HatFileData;
+import hats.common.core.HatHandler;
+import hats.common.core.HatLoadStats;
+import ichun.common.core.techne.TC2Info;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts Techne 1 (.tcn) hats to Techne 2 (.tc2) on the fork-join pool.
+ * Pairs we already converted, going by the checksums in the HatLibraryIndex, are skipped instead of being converted again.
+ */
+public class TaskConvertHats extends RecursiveAction
+{
+    public static final int THRESHOLD = 4;
+
+    public static final int CONVERTED = 1;
+    public static final int SKIPPED = 2;
+    public static final int FAILED = 0;
+
+    public final List<File> files;
+    public final int start;
+    public final int end;
+    public final AtomicInteger converted;
+    public final AtomicInteger skipped;
+    public final AtomicLong cpuNanos;
+
+    public TaskConvertHats(List<File> files, int start, int end, AtomicInteger converted, AtomicInteger skipped, AtomicLong cpuNanos)
+    {
+        this.files = files;
+        this.start = start;
+        this.end = end;
+        this.converted = converted;
+        this.skipped = skipped;
+        this.cpuNanos = cpuNanos;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(end - start <= THRESHOLD)
+        {
+            long cpu = HatLoadStats.getThreadCpuTime();
+            for(int i = start; i < end; i++)
+            {
+                int result = convert(files.get(i));
+                if(result == CONVERTED)
+                {
+                    converted.incrementAndGet();
+                }
+                else if(result == SKIPPED)
+                {
+                    skipped.incrementAndGet();
+                }
+            }
+            cpuNanos.addAndGet(HatLoadStats.getThreadCpuTime() - cpu);
+        }
+        else
+        {
+            int mid = (start + end) >>> 1;
+            invokeAll(new TaskConvertHats(files, start, mid, converted, skipped, cpuNanos), new TaskConvertHats(files, mid, end, converted, skipped, cpuNanos));
+        }
+    }
+
+    /**
+     * Converts one .tcn next to itself and deletes it. The .tc2 is written to a temp file and renamed into place
+     * so the loader and folder watcher never see a half written hat.
+     */
+    public static int convert(File file)
+    {
+        File target = new File(file.getParentFile(), file.getName().substring(0, file.getName().length() - 1) + "2");
+
+        String md5 = HatFileData.getChecksum(file);
+        String convertedTo = HatHandler.libraryIndex.getConverted(md5);
+        if(convertedTo != null && target.exists())
+        {
+            HatFileData indexed = HatHandler.libraryIndex.get(target);
+            if(convertedTo.equals(indexed != null ? indexed.checksum : HatFileData.getChecksum(target)))
+            {
+                file.delete();
+                return SKIPPED;
+            }
+        }
+
+        TC2Info info = TC2Info.readTechneFile(file);
+        if(info == null)
+        {
+            return FAILED;
+        }
+
+        File temp = new File(file.getParentFile(), target.getName() + ".tmp");
+        info.saveAsFile(temp, true);
+        if(!temp.exists() || target.exists() && !target.delete() || !temp.renameTo(target))
+        {
+            Hats.console("Failed to convert " + file.getName() + " to Techne 2 format!", true);
+            temp.delete();
+            return FAILED;
+        }
+        HatHandler.libraryIndex.putConverted(md5, HatFileData.getChecksum(target));
+        file.delete();
+        return CONVERTED;
+    }
+}
@@ -0,0 +1,49 @@
+package hats.common.thread;
+
+import hats.common.core.HatFileData;
+import hats.common.core.HatLoadStats;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TaskReadHats extends RecursiveAction
+{
+    public static final int THRESHOLD = 8;
+
+    public final List<File> files;
+    public final HatFileData[] results;
+    public final int start;
+    public final int end;
+    public final AtomicLong cpuNanos;
+
+    public TaskReadHats(List<File> files, HatFileData[] results, int start, int end, AtomicLong cpuNanos)
+    {
+        this.files = files;
+        this.results = results;
+        this.start = start;
+        this.end = end;
+        this.cpuNanos = cpuNanos;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(end - start <= THRESHOLD)
+        {
+            long cpu = HatLoadStats.getThreadCpuTime();
+            for(int i = start; i < end; i++)
+            {
+                //Each slot is only ever written by one task, the merge reads them after the pool has joined.
+                results[i] = HatFileData.read(files.get(i));
+            }
+            cpuNanos.addAndGet(HatLoadStats.getThreadCpuTime() - cpu);
+        }
+        else
+        {
+            int mid = (start + end) >>> 1;
+            invokeAll(new TaskReadHats(files, results, start, mid, cpuNanos), new TaskReadHats(files, results, mid, end, cpuNanos));
+        }
+    }
+}
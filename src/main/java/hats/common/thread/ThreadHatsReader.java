@@ -1,8 +1,10 @@
 package hats.common.thread;
 
 import hats.common.Hats;
+import hats.common.core.HatBundle;
+import hats.common.core.HatFileData;
 import hats.common.core.HatHandler;
-import ichun.common.core.techne.TC2Info;
+import hats.common.core.HatLoadStats;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -13,6 +15,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class ThreadHatsReader extends Thread
@@ -23,6 +30,8 @@ public class ThreadHatsReader extends Thread
 
     public final boolean loadGuiOnEnd;
 
+    private HatLoadStats stats;
+
     public ThreadHatsReader(File hatsFolder, boolean shouldDownload, boolean loadGuiOnEnd)
     {
         this.hatsFolder = hatsFolder;
@@ -36,8 +45,12 @@ public class ThreadHatsReader extends Thread
     @Override
     public void run()
     {
+        stats = new HatLoadStats(loadGuiOnEnd);
+        HatLoadStats.current = stats;
+
         if(shouldDownload)
         {
+            stats.begin("download");
             int hatDownloaded = 0;
             try
             {
@@ -71,6 +84,7 @@ public class ThreadHatsReader extends Thread
                                 if(downloadResource(new URL(url), new File(hatsFolder, var10), var11))
                                 {
                                     hatDownloaded++;
+                                    stats.add("download", 0L, 0L, var11, 1);
                                 }
                             }
                         }
@@ -91,9 +105,9 @@ public class ThreadHatsReader extends Thread
         int hatCount = 0;
 
         HatHandler.reloadingHats = true;
-        Hats.proxy.clearAllHats();
 
         //Handle favourites
+        stats.begin("favourites");
         File fav = new File(hatsFolder, "/Favourites");
         if(!fav.exists())
         {
@@ -124,6 +138,7 @@ public class ThreadHatsReader extends Thread
                         {
                             outStream.write(buffer, 0, length);
                         }
+                        stats.add("favourites", 0L, 0L, file.length(), 1);
                     }
                     catch(Exception e){}
 
@@ -147,7 +162,12 @@ public class ThreadHatsReader extends Thread
             }
         }
 
+        stats.begin("index");
+        HatHandler.libraryIndex.load();
+        stats.add("index", 0L, 0L, HatHandler.libraryIndex.indexFile.length(), HatHandler.libraryIndex.size());
+
         //Convert TCN (Techne 1) files to TC2 (Techne 2)
+        stats.begin("convert");
         int convertCount = convertFolderToTC2(hatsFolder);
 
         if(convertCount != 0)
@@ -156,32 +176,69 @@ public class ThreadHatsReader extends Thread
         }
 
         File[] files = hatsFolder.listFiles();
-        for(File file : files)
+
+        //Hash and parse everything up front on the pool. Merging into the HatHandler maps is still done below in folder order so the same "original" wins duplicate checks.
+        HashMap<File, HatFileData> preloaded = readHats(files);
+
+        stats.begin("merge");
+        int contribHats = 0;
+        //The old registry stays published while this builds the new one, readers never see a partly loaded library.
+        synchronized(HatHandler.registryLock)
         {
-            if(!file.isDirectory() && HatHandler.readHatFromFile(file))
+            Hats.proxy.clearAllHats();
+
+            for(File file : files)
             {
-                hatCount++;
+                if(!file.isDirectory() && !isBundleFile(file) && HatHandler.readHatFromFile(file, false, preloaded.get(file)))
+                {
+                    hatCount++;
+                }
             }
-        }
 
-        int contribHats = 0;
-        for(File file : files)
-        {
-            if(file.isDirectory() && !file.getName().equalsIgnoreCase("Disabled"))
+            //Packed hats go in after the loose ones so a loose file can override a bundled hat of the same name.
+            HatHandler.bundle = HatBundle.openLatest(hatsFolder);
+            if(HatHandler.bundle != null)
             {
-                if(file.getName().equalsIgnoreCase("Contributors"))
+                int bundled = 0;
+                for(int i = 0; i < HatHandler.bundle.size(); i++)
                 {
-                    contribHats += HatHandler.loadCategory(file);
-                    hatCount += contribHats;
+                    if(HatHandler.loadBundledHat(i))
+                    {
+                        bundled++;
+                    }
                 }
-                else
+                hatCount += bundled;
+                Hats.console("Loaded " + bundled + " of " + HatHandler.bundle.size() + " hats from " + HatHandler.bundle.file.getName() + ".");
+            }
+
+            for(File file : files)
+            {
+                if(file.isDirectory() && !file.getName().equalsIgnoreCase("Disabled"))
                 {
-                    hatCount += HatHandler.loadCategory(file);
+                    if(file.getName().equalsIgnoreCase("Contributors"))
+                    {
+                        contribHats += HatHandler.loadCategory(file, preloaded);
+                        hatCount += contribHats;
+                    }
+                    else
+                    {
+                        hatCount += HatHandler.loadCategory(file, preloaded);
+                    }
                 }
             }
+
+            HatHandler.publishRegistry();
         }
 
-        Hats.console((loadGuiOnEnd ? "Reloaded " : "Loaded ") + Integer.toString(hatCount) + (hatCount == 1 ? " hat" : " hats. " + contribHats + " are contributor hats."));
+        stats.add("merge", 0L, 0L, 0L, hatCount);
+
+        stats.begin("save index");
+        HatHandler.libraryIndex.update(preloaded.values());
+        HatHandler.libraryIndex.save();
+
+        stats.finish(hatCount);
+
+        Hats.console((loadGuiOnEnd ? "Reloaded " : "Loaded ") + Integer.toString(hatCount) + (hatCount == 1 ? " hat" : " hats. " + contribHats + " are contributor hats.") + " Took " + stats.getSummary());
 
         if(loadGuiOnEnd)
         {
@@ -189,30 +246,182 @@ public class ThreadHatsReader extends Thread
         }
 
         HatHandler.reloadingHats = false;
+
+        if(Hats.config.getInt("watchHatsFolder") == 1)
+        {
+            ThreadHatsWatcher.startWatching(hatsFolder);
+        }
+    }
+
+    private HashMap<File, HatFileData> readHats(File[] files)
+    {
+        HashMap<File, HatFileData> preloaded = new HashMap<File, HatFileData>();
+
+        int threads = getThreadCount();
+
+        ArrayList<File> hatFiles = new ArrayList<File>();
+        for(File file : files)
+        {
+            if(!file.isDirectory() && !isBundleFile(file))
+            {
+                hatFiles.add(file);
+            }
+        }
+        for(File file : files)
+        {
+            if(file.isDirectory() && !file.getName().equalsIgnoreCase("Disabled"))
+            {
+                File[] categoryFiles = file.listFiles();
+                for(File file1 : categoryFiles)
+                {
+                    if(!file1.isDirectory() && file1.getName().endsWith(".tc2"))
+                    {
+                        hatFiles.add(file1);
+                    }
+                }
+            }
+        }
+
+        stats.begin("read");
+        long start = System.nanoTime();
+
+        //Unchanged files are trusted from the index, only new or modified ones get read.
+        ArrayList<File> toRead = new ArrayList<File>();
+        for(File file : hatFiles)
+        {
+            HatFileData data = HatHandler.libraryIndex.get(file);
+            if(data != null)
+            {
+                preloaded.put(file, data);
+            }
+            else
+            {
+                toRead.add(file);
+            }
+        }
+
+        HatFileData[] results = new HatFileData[toRead.size()];
+        AtomicLong workerCpu = new AtomicLong();
+        if(threads == 1)
+        {
+            for(int i = 0; i < results.length; i++)
+            {
+                results[i] = HatFileData.read(toRead.get(i));
+            }
+        }
+        else if(results.length > 0)
+        {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try
+            {
+                pool.invoke(new TaskReadHats(toRead, results, 0, results.length, workerCpu));
+            }
+            catch(Exception e)
+            {
+                //Anything left unread falls back to the serial read in HatHandler.
+                e.printStackTrace();
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        long work = 0L;
+        long hashing = 0L;
+        long bytes = 0L;
+        for(HatFileData data : results)
+        {
+            if(data != null)
+            {
+                preloaded.put(data.file, data);
+                work += data.nanos;
+                hashing += data.hashNanos;
+                bytes += data.size;
+            }
+        }
+
+        stats.end();
+        stats.add("read", 0L, workerCpu.get(), bytes, results.length);
+        stats.getPhase("read").note = (hatFiles.size() - results.length) + " unchanged, hashing " + (hashing / 1000000L) + "ms and parsing " + ((work - hashing) / 1000000L) + "ms summed across threads";
+
+        Hats.console("Read " + results.length + " hat files (" + (hatFiles.size() - results.length) + " unchanged from index) in " + ((System.nanoTime() - start) / 1000000L) + "ms on " + threads + (threads == 1 ? " thread." : " threads. Serial read would have taken about " + (work / 1000000L) + "ms."));
+
+        return preloaded;
+    }
+
+    private boolean isBundleFile(File file)
+    {
+        return file.getName().startsWith(HatBundle.FILE_NAME);
+    }
+
+    private int getThreadCount()
+    {
+        int threads = Hats.config.getInt("hatLoadThreads");
+        if(threads <= 0)
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
     }
 
     private int convertFolderToTC2(File folder)
     {
-        int converted = 0;
+        ArrayList<File> tcnFiles = new ArrayList<File>();
+        findTechneFiles(folder, tcnFiles);
+        if(tcnFiles.isEmpty())
+        {
+            return 0;
+        }
+
+        AtomicInteger converted = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicLong workerCpu = new AtomicLong();
+
+        int threads = Math.min(getThreadCount(), tcnFiles.size());
+        if(threads == 1)
+        {
+            (new TaskConvertHats(tcnFiles, 0, tcnFiles.size(), converted, skipped, new AtomicLong())).compute();
+        }
+        else
+        {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try
+            {
+                pool.invoke(new TaskConvertHats(tcnFiles, 0, tcnFiles.size(), converted, skipped, workerCpu));
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        stats.add("convert", 0L, workerCpu.get(), 0L, converted.get());
+        if(skipped.get() > 0)
+        {
+            stats.getPhase("convert").note = skipped.get() + " already converted";
+        }
+        return converted.get();
+    }
+
+    private void findTechneFiles(File folder, ArrayList<File> tcnFiles)
+    {
         File[] files = folder.listFiles();
         for(File file : files)
         {
             if(file.isDirectory())
             {
-                converted += convertFolderToTC2(file);
+                findTechneFiles(file, tcnFiles);
             }
             else if(file.getName().endsWith(".tcn"))
             {
-                TC2Info info = TC2Info.readTechneFile(file);
-                if(info != null)
-                {
-                    info.saveAsFile(new File(file.getParentFile(), file.getName().substring(0, file.getName().length() - 1) + "2"), true);
-                    file.delete();
-                    converted++;
-                }
+                tcnFiles.add(file);
             }
         }
-        return converted;
     }
 
     public boolean downloadResource(URL par1URL, File par2File, long size) throws IOException
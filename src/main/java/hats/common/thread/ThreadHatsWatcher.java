@@ -0,0 +1,369 @@
+package hats.common.thread;
+
+import hats.common.Hats;
+import hats.common.core.HatHandler;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the hats folder and its category folders, applying adds, removes, renames and category changes
+ * as targeted updates instead of rereading the whole library through ThreadHatsReader.
+ */
+public class ThreadHatsWatcher extends Thread
+{
+    public final File hatsFolder;
+
+    private final WatchService watchService;
+
+    private final HashMap<WatchKey, File> watchedDirs = new HashMap<WatchKey, File>();
+
+    private final LinkedHashSet<File> pending = new LinkedHashSet<File>();
+
+    private boolean overflow;
+
+    public ThreadHatsWatcher(File hatsFolder) throws IOException
+    {
+        this.hatsFolder = hatsFolder;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        this.setName("Hats Folder Watcher Thread");
+        this.setDaemon(true);
+
+        watch(hatsFolder);
+        File[] files = hatsFolder.listFiles();
+        for(File file : files)
+        {
+            if(isCategoryFolder(file))
+            {
+                watch(file);
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while(true)
+        {
+            try
+            {
+                WatchKey key = watchService.take();
+                //Let a burst of events (copying a hat pack in, renaming a folder) settle before applying it.
+                while(key != null)
+                {
+                    queueEvents(key);
+                    key = watchService.poll(250L, java.util.concurrent.TimeUnit.MILLISECONDS);
+                }
+                flush();
+            }
+            catch(InterruptedException e)
+            {
+                break;
+            }
+            catch(ClosedWatchServiceException e)
+            {
+                break;
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void queueEvents(WatchKey key)
+    {
+        File dir;
+        synchronized(this)
+        {
+            dir = watchedDirs.get(key);
+        }
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == OVERFLOW)
+            {
+                synchronized(this)
+                {
+                    overflow = true;
+                }
+                continue;
+            }
+            if(dir != null)
+            {
+                File file = new File(dir, ((Path)event.context()).toString());
+                synchronized(this)
+                {
+                    pending.add(file);
+                }
+            }
+        }
+        if(!key.reset())
+        {
+            synchronized(this)
+            {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Applies every change queued so far. Also called by the GUI reload so changes it just made are visible straight away.
+     */
+    public synchronized void flush()
+    {
+        if(HatHandler.reloadingHats)
+        {
+            //A full reload is running, it'll pick up whatever is queued.
+            return;
+        }
+
+        if(overflow)
+        {
+            overflow = false;
+            pending.clear();
+            Hats.console("Too many changes in the hats folder at once, rereading the whole folder.");
+            (new ThreadHatsReader(hatsFolder, false, false)).start();
+            return;
+        }
+
+        synchronized(HatHandler.registryLock)
+        {
+            //Catch category folders created or renamed that the watch service hasn't reported yet.
+            for(File file : hatsFolder.listFiles())
+            {
+                if(isCategoryFolder(file) && !HatHandler.categories.containsKey(file.getName()))
+                {
+                    pending.add(file);
+                }
+            }
+            for(String category : new ArrayList<String>(HatHandler.categories.keySet()))
+            {
+                File dir = new File(hatsFolder, category);
+                if(!dir.isDirectory())
+                {
+                    pending.add(dir);
+                }
+            }
+
+            if(pending.isEmpty())
+            {
+                return;
+            }
+
+            ArrayList<File> changes = new ArrayList<File>(pending);
+            pending.clear();
+
+            int changed = 0;
+            for(File file : changes)
+            {
+                if(file.getParentFile().equals(hatsFolder))
+                {
+                    changed += applyRootChange(file);
+                }
+                else if(file.getParentFile().getParentFile().equals(hatsFolder) && !file.getParentFile().getName().equalsIgnoreCase("Disabled"))
+                {
+                    changed += applyCategoryChange(file.getParentFile(), file);
+                }
+            }
+
+            if(changed > 0)
+            {
+                HatHandler.publishRegistry();
+                Hats.console("Applied " + changed + (changed == 1 ? " change" : " changes") + " from the hats folder.");
+            }
+        }
+    }
+
+    public synchronized void clearPending()
+    {
+        pending.clear();
+        overflow = false;
+    }
+
+    private int applyRootChange(File file)
+    {
+        String name = file.getName();
+        if(file.isDirectory())
+        {
+            if(isCategoryFolder(file) && !HatHandler.categories.containsKey(name))
+            {
+                watch(file);
+                HatHandler.loadCategory(file);
+                return 1;
+            }
+        }
+        else if(!file.exists() && HatHandler.categories.containsKey(name))
+        {
+            //Category folder was removed or renamed away.
+            HatHandler.removeCategory(name);
+            for(Map.Entry<File, String> e : new HashMap<File, String>(HatHandler.getActualHatNamesMap()).entrySet())
+            {
+                if(e.getKey().getParentFile().getName().equals(name) && !e.getKey().getParentFile().equals(hatsFolder))
+                {
+                    HatHandler.unloadHatFile(e.getKey());
+                }
+            }
+            return 1;
+        }
+        else if(name.endsWith(".tcn"))
+        {
+            if(file.exists())
+            {
+                //Convert it, the watcher will pick up the .tc2 once it's renamed into place.
+                TaskConvertHats.convert(file);
+            }
+        }
+        else if(name.endsWith(".tc2"))
+        {
+            if(file.exists())
+            {
+                HatHandler.reloadHatFile(file, false);
+            }
+            else
+            {
+                HatHandler.unloadHatFile(file);
+                //Fall back to the packed copy if the loose file was overriding one.
+                if(HatHandler.bundle != null)
+                {
+                    int i = HatHandler.bundle.indexOf(name.substring(0, name.length() - 4));
+                    if(i >= 0)
+                    {
+                        HatHandler.loadBundledHat(i);
+                    }
+                }
+            }
+            return 1;
+        }
+        return 0;
+    }
+
+    private int applyCategoryChange(File dir, File file)
+    {
+        if(file.getName().equals(HatHandler.CATEGORY_MANIFEST))
+        {
+            //Reference list edited, rebuild the category from the folder and the list.
+            HatHandler.loadCategory(dir);
+            return 1;
+        }
+        if(!file.getName().endsWith(".tc2"))
+        {
+            return 0;
+        }
+
+        String hatName = file.getName().substring(0, file.getName().length() - 4);
+
+        if(file.exists())
+        {
+            HatHandler.addCategoryMember(dir.getName(), hatName);
+            if(dir.getName().equalsIgnoreCase("Favourites"))
+            {
+                File hat = new File(hatsFolder, file.getName());
+                if(!hat.exists())
+                {
+                    //Same as the favourites pass on a full load, the main folder copy is what gets read.
+                    copyFile(file, hat);
+                    HatHandler.reloadHatFile(hat, false);
+                }
+            }
+            HatHandler.reloadHatFile(file, true);
+        }
+        else
+        {
+            if(!HatHandler.readCategoryManifest(dir).contains(hatName))
+            {
+                HatHandler.removeCategoryMember(dir.getName(), hatName);
+            }
+            HatHandler.unloadHatFile(file);
+        }
+        return 1;
+    }
+
+    private synchronized void watch(File dir)
+    {
+        try
+        {
+            watchedDirs.put(dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        }
+        catch(IOException e)
+        {
+            Hats.console("Unable to watch " + dir.getName() + " for changes!", true);
+        }
+    }
+
+    private boolean isCategoryFolder(File file)
+    {
+        return file.isDirectory() && !file.getName().equalsIgnoreCase("Disabled");
+    }
+
+    private static void copyFile(File from, File to)
+    {
+        InputStream inStream = null;
+        OutputStream outStream = null;
+
+        try
+        {
+            inStream = new FileInputStream(from);
+            outStream = new FileOutputStream(to);
+
+            byte[] buffer = new byte[8192];
+
+            int length;
+
+            while((length = inStream.read(buffer)) > 0)
+            {
+                outStream.write(buffer, 0, length);
+            }
+        }
+        catch(Exception e){}
+
+        try
+        {
+            if(inStream != null)
+            {
+                inStream.close();
+            }
+        }
+        catch(IOException e){}
+        try
+        {
+            if(outStream != null)
+            {
+                outStream.close();
+            }
+        }
+        catch(IOException e){}
+    }
+
+    public static ThreadHatsWatcher instance;
+
+    public static void startWatching(File hatsFolder)
+    {
+        if(instance != null)
+        {
+            instance.clearPending();
+            return;
+        }
+        try
+        {
+            instance = new ThreadHatsWatcher(hatsFolder);
+            instance.start();
+            Hats.console("Watching the hats folder for changes.");
+        }
+        catch(IOException e)
+        {
+            Hats.console("Unable to watch the hats folder, changes will need a full reload.", true);
+        }
+    }
+
+    public static boolean isWatching()
+    {
+        return instance != null && instance.isAlive();
+    }
+}
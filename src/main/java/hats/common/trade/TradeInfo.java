@@ -1,6 +1,8 @@
 package hats.common.trade;
 
 import hats.common.Hats;
+import hats.common.core.HatCounts;
+import hats.common.core.HatHandler;
 import hats.common.packet.PacketString;
 import hats.common.packet.PacketTradeOffers;
 import hats.common.packet.PacketTradeReadyInfo;
@@ -25,10 +27,10 @@ public class TradeInfo
 	public boolean trade1;
 	public boolean trade2;
 	
-	public TreeMap<String, Integer> trader1Hats = new TreeMap<String, Integer>();
+	public HatCounts trader1Hats = new HatCounts();
 	public ArrayList<ItemStack> trader1Items = new ArrayList<ItemStack>();
 	
-	public TreeMap<String, Integer> trader2Hats = new TreeMap<String, Integer>();
+	public HatCounts trader2Hats = new HatCounts();
 	public ArrayList<ItemStack> trader2Items = new ArrayList<ItemStack>();
 	
 	public boolean terminate;
@@ -125,17 +127,17 @@ public class TradeInfo
 		return trader1 == player || trader2 == player;
 	}
 
-	public void receiveTradeInfo(TreeMap<String, Integer> hats, ArrayList<ItemStack> items, EntityPlayerMP player)
+	public void receiveTradeInfo(HatCounts hats, ArrayList<ItemStack> items, EntityPlayerMP player)
 	{
-        PacketHandler.sendToPlayer(Hats.channels, new PacketTradeOffers(hats, items), getOtherPlayer(player));
+        PacketHandler.sendToPlayer(Hats.channels, new PacketTradeOffers(hats.toNameMap(), items), getOtherPlayer(player));
 
         EntityPlayer player1;
         EntityPlayer player2;
 
-        TreeMap<String, Integer> oldHats;
+        HatCounts oldHats;
         ArrayList<ItemStack> oldItems;
 
-        TreeMap<String, Integer> newHats = new TreeMap<String, Integer>(hats);
+        HatCounts newHats = new HatCounts(hats);
         ArrayList<ItemStack> newItems = new ArrayList<ItemStack>(items);
 
         if(player == trader1)
@@ -143,7 +145,7 @@ public class TradeInfo
             player1 = trader1;
             player2 = trader2;
 
-            oldHats = new TreeMap<String, Integer>(trader1Hats);
+            oldHats = new HatCounts(trader1Hats);
             oldItems = new ArrayList<ItemStack>(trader1Items);
 
             trader1Hats = hats;
@@ -154,30 +156,21 @@ public class TradeInfo
             player1 = trader2;
             player2 = trader1;
 
-            oldHats = new TreeMap<String, Integer>(trader2Hats);
+            oldHats = new HatCounts(trader2Hats);
             oldItems = new ArrayList<ItemStack>(trader2Items);
 
             trader2Hats = hats;
             trader2Items = items;
         }
 
-        Iterator<Map.Entry<String, Integer>> ite = newHats.entrySet().iterator();
-        while(ite.hasNext())
+        HatCounts removedHats = new HatCounts(oldHats);
+        for(int i = 0; i < hats.size(); i++)
         {
-            Map.Entry<String, Integer> e = ite.next();
-            for(Map.Entry<String, Integer> e1 : oldHats.entrySet())
-            {
-                if(e.getKey().equals(e1.getKey()))
-                {
-                    e.setValue(e.getValue() - e1.getValue());
-                    if(e.getValue() <= 0)
-                    {
-                        ite.remove();
-                        break;
-                    }
-                }
-            }
+            int id = hats.getIdAt(i);
+            newHats.set(id, newHats.get(id) - oldHats.get(id));
+            removedHats.set(id, removedHats.get(id) - hats.getCountAt(i));
         }
+        oldHats = removedHats;
 
         for(ItemStack is : oldItems)
         {
@@ -191,24 +184,6 @@ public class TradeInfo
             }
         }
 
-        Iterator<Map.Entry<String, Integer>> ite1 = oldHats.entrySet().iterator();
-        while(ite1.hasNext())
-        {
-            Map.Entry<String, Integer> e = ite1.next();
-            for(Map.Entry<String, Integer> e1 : hats.entrySet())
-            {
-                if(e.getKey().equals(e1.getKey()))
-                {
-                    e.setValue(e.getValue() - e1.getValue());
-                    if(e.getValue() <= 0)
-                    {
-                        ite1.remove();
-                        break;
-                    }
-                }
-            }
-        }
-
         for(ItemStack is : items)
         {
             for(int i = oldItems.size() - 1; i >= 0; i--)
@@ -251,10 +226,11 @@ public class TradeInfo
             }
         }
 
-        for(Map.Entry<String, Integer> e : oldHats.entrySet())
+        for(int i = 0; i < oldHats.size(); i++)
         {
-            sendTradeMessage(StatCollector.translateToLocal("hats.trade.you") + " " + StatCollector.translateToLocal("hats.trade.removed") + " " + EnumChatFormatting.WHITE.toString() + e.getKey(), player1);
-            sendTradeMessage(player1.getCommandSenderName() + " " + StatCollector.translateToLocal("hats.trade.removed") + " " + EnumChatFormatting.WHITE.toString() + e.getKey(), player2);
+            String hatName = HatHandler.getNameForHat(oldHats.getNameAt(i));
+            sendTradeMessage(StatCollector.translateToLocal("hats.trade.you") + " " + StatCollector.translateToLocal("hats.trade.removed") + " " + EnumChatFormatting.WHITE.toString() + hatName, player1);
+            sendTradeMessage(player1.getCommandSenderName() + " " + StatCollector.translateToLocal("hats.trade.removed") + " " + EnumChatFormatting.WHITE.toString() + hatName, player2);
         }
         for(ItemStack is : oldItems)
         {
@@ -262,10 +238,11 @@ public class TradeInfo
             sendTradeMessage(player1.getCommandSenderName() + " " + StatCollector.translateToLocal("hats.trade.removed") + " " + EnumChatFormatting.WHITE.toString() + is.stackSize + " " + is.getDisplayName(), player2);
         }
 
-        for(Map.Entry<String, Integer> e : newHats.entrySet())
+        for(int i = 0; i < newHats.size(); i++)
         {
-            sendTradeMessage(StatCollector.translateToLocal("hats.trade.you") + " " + StatCollector.translateToLocal("hats.trade.added") + " " + EnumChatFormatting.WHITE.toString() + e.getKey(), player1);
-            sendTradeMessage(player1.getCommandSenderName() + " " + StatCollector.translateToLocal("hats.trade.added") + " " + EnumChatFormatting.WHITE.toString() + e.getKey(), player2);
+            String hatName = HatHandler.getNameForHat(newHats.getNameAt(i));
+            sendTradeMessage(StatCollector.translateToLocal("hats.trade.you") + " " + StatCollector.translateToLocal("hats.trade.added") + " " + EnumChatFormatting.WHITE.toString() + hatName, player1);
+            sendTradeMessage(player1.getCommandSenderName() + " " + StatCollector.translateToLocal("hats.trade.added") + " " + EnumChatFormatting.WHITE.toString() + hatName, player2);
         }
         for(ItemStack is : newItems)
         {